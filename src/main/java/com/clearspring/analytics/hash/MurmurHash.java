@@ -132,6 +132,30 @@ public class MurmurHash {
         return h;
     }
 
+    /**
+     * Generates 64 bit hash of a long with the default seed value, the same as
+     * {@link #hash64(byte[], int)} of its 8 little-endian bytes.
+     */
+    public static long hashLong64(long data) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+
+        long h = (0xe17a1465 & 0xffffffffl) ^ (8 * m);
+
+        long k = data * m;
+        k ^= k >>> r;
+        k *= m;
+
+        h ^= k;
+        h *= m;
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+
+        return h;
+    }
+
     public static long hash64(Object o) {
         if (o == null) {
             return 0l;
@@ -168,6 +192,19 @@ public class MurmurHash {
      * @return 64 bit hash of the given array
      */
     public static long hash64(final byte[] data, int length, int seed) {
+        return hash64(data, 0, length, seed);
+    }
+
+    /**
+     * Generates 64 bit hash from a slice of a byte array with the given seed.
+     *
+     * @param data   byte array to hash
+     * @param offset start of the slice
+     * @param length length of the slice
+     * @param seed   initial seed value
+     * @return 64 bit hash of the given slice, the same as hashing a copy of it
+     */
+    public static long hash64(final byte[] data, int offset, int length, int seed) {
         final long m = 0xc6a4a7935bd1e995L;
         final int r = 47;
 
@@ -176,7 +213,7 @@ public class MurmurHash {
         int length8 = length / 8;
 
         for (int i = 0; i < length8; i++) {
-            final int i8 = i * 8;
+            final int i8 = offset + i * 8;
             long k = ((long) data[i8 + 0] & 0xff) + (((long) data[i8 + 1] & 0xff) << 8)
                      + (((long) data[i8 + 2] & 0xff) << 16) + (((long) data[i8 + 3] & 0xff) << 24)
                      + (((long) data[i8 + 4] & 0xff) << 32) + (((long) data[i8 + 5] & 0xff) << 40)
@@ -192,19 +229,19 @@ public class MurmurHash {
 
         switch (length % 8) {
             case 7:
-                h ^= (long) (data[(length & ~7) + 6] & 0xff) << 48;
+                h ^= (long) (data[offset + (length & ~7) + 6] & 0xff) << 48;
             case 6:
-                h ^= (long) (data[(length & ~7) + 5] & 0xff) << 40;
+                h ^= (long) (data[offset + (length & ~7) + 5] & 0xff) << 40;
             case 5:
-                h ^= (long) (data[(length & ~7) + 4] & 0xff) << 32;
+                h ^= (long) (data[offset + (length & ~7) + 4] & 0xff) << 32;
             case 4:
-                h ^= (long) (data[(length & ~7) + 3] & 0xff) << 24;
+                h ^= (long) (data[offset + (length & ~7) + 3] & 0xff) << 24;
             case 3:
-                h ^= (long) (data[(length & ~7) + 2] & 0xff) << 16;
+                h ^= (long) (data[offset + (length & ~7) + 2] & 0xff) << 16;
             case 2:
-                h ^= (long) (data[(length & ~7) + 1] & 0xff) << 8;
+                h ^= (long) (data[offset + (length & ~7) + 1] & 0xff) << 8;
             case 1:
-                h ^= (long) (data[length & ~7] & 0xff);
+                h ^= (long) (data[offset + (length & ~7)] & 0xff);
                 h *= m;
         }
         ;
@@ -14,8 +14,6 @@
 
 package com.clearspring.analytics.stream.frequency;
 
-import com.clearspring.analytics.stream.membership.Filter;
-
 /**
  * A more accurate (by some large, but ill-defined amount), but slower (by some
  * small, but equally ill-defined amount) count min sketch. It seemed like a
@@ -41,7 +39,7 @@ public class ConservativeAddSketch extends CountMinSketch {
     }
 
     @Override
-    public void add(long item, long count) {
+    long addAndEstimate(long item, long count) {
         if (count < 0) {
             // Negative values are not implemented in the regular version, and do not
             // play nicely with this algorithm anyway
@@ -60,24 +58,27 @@ public class ConservativeAddSketch extends CountMinSketch {
             table[i][buckets[i]] = newVal;
         }
         size += count;
+        return min + count;
     }
 
     @Override
-    public void add(String item, long count) {
+    long addAndEstimate(String item, long count) {
         if (count < 0) {
             // Negative values are not implemented in the regular version, and do not
             // play nicely with this algorithm anyway
             throw new IllegalArgumentException("Negative increments not implemented");
         }
-        int[] buckets = Filter.getHashBuckets(item, depth, width);
-        long min = table[0][buckets[0]];
+        long hashes = hashes(item);
+        long min = table[0][bucket(hashes, 0)];
         for (int i = 1; i < depth; ++i) {
-            min = Math.min(min, table[i][buckets[i]]);
+            min = Math.min(min, table[i][bucket(hashes, i)]);
         }
         for (int i = 0; i < depth; ++i) {
-            long newVal = Math.max(table[i][buckets[i]], min + count);
-            table[i][buckets[i]] = newVal;
+            int bucket = bucket(hashes, i);
+            long newVal = Math.max(table[i][bucket], min + count);
+            table[i][bucket] = newVal;
         }
         size += count;
+        return min + count;
     }
 }
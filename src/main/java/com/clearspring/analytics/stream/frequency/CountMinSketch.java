@@ -23,9 +23,12 @@ import java.io.Serializable;
 
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.clearspring.analytics.stream.membership.Filter;
 import com.clearspring.analytics.util.Preconditions;
+import com.clearspring.analytics.util.Varint;
 
 /**
  * Count-Min Sketch datastructure.
@@ -37,6 +40,11 @@ public class CountMinSketch implements IFrequency, Serializable {
     public static final long PRIME_MODULUS = (1L << 31) - 1;
     private static final long serialVersionUID = -5084982213094657923L;
 
+    // the fixed width encoding starts with the high byte of a non-negative size
+    private static final byte COMPACT_VERSION_1 = (byte) 0x81;
+    // the same, for sketches that hash String items with Filter.bucket
+    private static final byte COMPACT_VERSION_2 = (byte) 0x82;
+
     int depth;
     int width;
     long[][] table;
@@ -44,11 +52,15 @@ public class CountMinSketch implements IFrequency, Serializable {
     long size;
     double eps;
     double confidence;
+    // String items are hashed with Filter.hash64 and Filter.bucket, except in
+    // sketches read from encodings written before, which keep the legacy buckets
+    boolean hash64;
 
     CountMinSketch() {
     }
 
     public CountMinSketch(int depth, int width, int seed) {
+        this.hash64 = true;
         this.depth = depth;
         this.width = width;
         this.eps = 2.0 / width;
@@ -59,6 +71,7 @@ public class CountMinSketch implements IFrequency, Serializable {
     public CountMinSketch(double epsOfTotalCount, double confidence, int seed) {
         // 2/w = eps ; w = 2/eps
         // 1/2^depth <= 1-confidence ; depth >= -log2 (1-confidence)
+        this.hash64 = true;
         this.eps = epsOfTotalCount;
         this.confidence = confidence;
         this.width = (int) Math.ceil(2 / epsOfTotalCount);
@@ -67,6 +80,11 @@ public class CountMinSketch implements IFrequency, Serializable {
     }
 
     CountMinSketch(int depth, int width, long size, long[] hashA, long[][] table) {
+        this(depth, width, size, hashA, table, true);
+    }
+
+    CountMinSketch(int depth, int width, long size, long[] hashA, long[][] table, boolean hash64) {
+        this.hash64 = hash64;
         this.depth = depth;
         this.width = width;
         this.eps = 2.0 / width;
@@ -118,6 +136,10 @@ public class CountMinSketch implements IFrequency, Serializable {
             return false;
         }
 
+        if (hash64 != that.hash64) {
+            return false;
+        }
+
         if (!Arrays.deepEquals(table, that.table)) {
             return false;
         }
@@ -133,6 +155,7 @@ public class CountMinSketch implements IFrequency, Serializable {
         result = 31 * result + Arrays.deepHashCode(table);
         result = 31 * result + Arrays.hashCode(hashA);
         result = 31 * result + (int) (size ^ (size >>> 32));
+        result = 31 * result + (hash64 ? 1 : 0);
         temp = Double.doubleToLongBits(eps);
         result = 31 * result + (int) (temp ^ (temp >>> 32));
         temp = Double.doubleToLongBits(confidence);
@@ -164,7 +187,11 @@ public class CountMinSketch implements IFrequency, Serializable {
     }
 
     int hash(long item, int i) {
-        long hash = hashA[i] * item;
+        return hash(item, hashA[i], width);
+    }
+
+    static int hash(long item, long a, int width) {
+        long hash = a * item;
         // A super fast way of computing x mod 2^p-1
         // See http://www.cs.princeton.edu/courses/archive/fall09/cos521/Handouts/universalclasses.pdf
         // page 149, right after Proposition 7.
@@ -174,6 +201,26 @@ public class CountMinSketch implements IFrequency, Serializable {
         return ((int) hash) % width;
     }
 
+    /*
+     * The hashes of a String item, from which bucket derives its cell in
+     * each row.
+     */
+    long hashes(String item) {
+        return hashes(item, hash64);
+    }
+
+    int bucket(long hashes, int i) {
+        return bucket(hashes, i, width, hash64);
+    }
+
+    static long hashes(String item, boolean hash64) {
+        return hash64 ? Filter.hash64(item) : Filter.legacyHashes(item);
+    }
+
+    static int bucket(long hashes, int i, int width, boolean hash64) {
+        return hash64 ? Filter.bucket(hashes, i, width) : Filter.legacyBucket(hashes, i, width);
+    }
+
     private static void checkSizeAfterOperation(long previousSize, String operation, long newSize) {
         if (newSize < previousSize) {
             throw new IllegalStateException("Overflow error: the size after calling `" + operation +
@@ -191,6 +238,20 @@ public class CountMinSketch implements IFrequency, Serializable {
 
     @Override
     public void add(long item, long count) {
+        addAndEstimate(item, count);
+    }
+
+    @Override
+    public void add(String item, long count) {
+        addAndEstimate(item, count);
+    }
+
+    /**
+     * Adds count to the item and returns the estimated count of the item after
+     * the update. Equivalent to calling add and then estimateCount, but hashes
+     * the item only once.
+     */
+    long addAndEstimate(long item, long count) {
         if (count < 0) {
             // Actually for negative increments we'll need to use the median
             // instead of minimum, and accuracy will suffer somewhat.
@@ -198,15 +259,18 @@ public class CountMinSketch implements IFrequency, Serializable {
             // parameter to constructor.
             throw new IllegalArgumentException("Negative increments not implemented");
         }
+        long res = Long.MAX_VALUE;
         for (int i = 0; i < depth; ++i) {
-            table[i][hash(item, i)] += count;
+            int bucket = hash(item, i);
+            table[i][bucket] += count;
+            res = Math.min(res, table[i][bucket]);
         }
 
         checkSizeAfterAdd(String.valueOf(item), count);
+        return res;
     }
 
-    @Override
-    public void add(String item, long count) {
+    long addAndEstimate(String item, long count) {
         if (count < 0) {
             // Actually for negative increments we'll need to use the median
             // instead of minimum, and accuracy will suffer somewhat.
@@ -214,12 +278,16 @@ public class CountMinSketch implements IFrequency, Serializable {
             // parameter to constructor.
             throw new IllegalArgumentException("Negative increments not implemented");
         }
-        int[] buckets = Filter.getHashBuckets(item, depth, width);
+        long hashes = hashes(item);
+        long res = Long.MAX_VALUE;
         for (int i = 0; i < depth; ++i) {
-            table[i][buckets[i]] += count;
+            int bucket = bucket(hashes, i);
+            table[i][bucket] += count;
+            res = Math.min(res, table[i][bucket]);
         }
 
         checkSizeAfterAdd(item, count);
+        return res;
     }
 
     @Override
@@ -243,9 +311,9 @@ public class CountMinSketch implements IFrequency, Serializable {
     @Override
     public long estimateCount(String item) {
         long res = Long.MAX_VALUE;
-        int[] buckets = Filter.getHashBuckets(item, depth, width);
+        long hashes = hashes(item);
         for (int i = 0; i < depth; ++i) {
-            res = Math.min(res, table[i][buckets[i]]);
+            res = Math.min(res, table[i][bucket(hashes, i)]);
         }
         return res;
     }
@@ -268,15 +336,7 @@ public class CountMinSketch implements IFrequency, Serializable {
             long size = 0;
 
             for (CountMinSketch estimator : estimators) {
-                if (estimator.depth != depth) {
-                    throw new CMSMergeException("Cannot merge estimators of different depth");
-                }
-                if (estimator.width != width) {
-                    throw new CMSMergeException("Cannot merge estimators of different width");
-                }
-                if (!Arrays.equals(estimator.hashA, hashA)) {
-                    throw new CMSMergeException("Cannot merge estimators of different seed");
-                }
+                checkMergeable(estimators[0], estimator);
 
                 for (int i = 0; i < table.length; i++) {
                     for (int j = 0; j < table[i].length; j++) {
@@ -289,18 +349,155 @@ public class CountMinSketch implements IFrequency, Serializable {
                 checkSizeAfterOperation(previousSize, "merge(" + estimator + ")", size);
             }
 
-            merged = new CountMinSketch(depth, width, size, hashA, table);
+            merged = new CountMinSketch(depth, width, size, hashA, table, estimators[0].hash64);
         }
 
         return merged;
     }
 
+    /**
+     * Adds the counts of this sketch to the target sketch in place, without
+     * allocating a new table.
+     *
+     * @param target sketch to merge into
+     * @throws CMSMergeException if the sketches are not mergeable (same depth, width and seed)
+     */
+    public void mergeInto(CountMinSketch target) throws CMSMergeException {
+        checkMergeable(target, this);
+        long size = addSizes(target.size, this);
+        for (int i = 0; i < depth; i++) {
+            long[] source = table[i];
+            long[] dest = target.table[i];
+            for (int j = 0; j < width; j++) {
+                dest[j] += source[j];
+            }
+        }
+        target.size = size;
+    }
+
+    /**
+     * Merges count min sketches like {@link #merge(CountMinSketch...)}, but splits
+     * the table into ranges of cells that are summed concurrently on the given pool.
+     *
+     * @param pool       pool to run the merge on
+     * @param estimators
+     * @return merged estimator or null if no estimators were provided
+     * @throws CMSMergeException if estimators are not mergeable (same depth, width and seed)
+     */
+    public static CountMinSketch mergeParallel(ForkJoinPool pool, CountMinSketch... estimators)
+            throws CMSMergeException {
+        if (estimators == null || estimators.length == 0) {
+            return null;
+        }
+        CountMinSketch first = estimators[0];
+        CountMinSketch merged = new CountMinSketch(first.depth, first.width, 0,
+                Arrays.copyOf(first.hashA, first.hashA.length), new long[first.depth][first.width], first.hash64);
+        mergeParallelInto(pool, merged, estimators);
+        return merged;
+    }
+
+    /**
+     * Adds the counts of all sources to the target sketch in place, splitting the
+     * table into ranges of cells that are summed concurrently on the given pool.
+     * The target is left unchanged if any source is not mergeable.
+     *
+     * @param pool    pool to run the merge on
+     * @param target  sketch to merge into
+     * @param sources
+     * @throws CMSMergeException if the sketches are not mergeable (same depth, width and seed)
+     */
+    public static void mergeParallelInto(ForkJoinPool pool, CountMinSketch target, CountMinSketch... sources)
+            throws CMSMergeException {
+        long size = target.size;
+        for (CountMinSketch source : sources) {
+            checkMergeable(target, source);
+            size = addSizes(size, source);
+        }
+        long[][][] tables = new long[sources.length][][];
+        for (int k = 0; k < sources.length; k++) {
+            tables[k] = sources[k].table;
+        }
+        pool.invoke(new MergeTask(target.table, tables, target.width, 0, (long) target.depth * target.width));
+        target.size = size;
+    }
+
+    private static void checkMergeable(CountMinSketch target, CountMinSketch estimator) throws CMSMergeException {
+        if (estimator.depth != target.depth) {
+            throw new CMSMergeException("Cannot merge estimators of different depth");
+        }
+        if (estimator.width != target.width) {
+            throw new CMSMergeException("Cannot merge estimators of different width");
+        }
+        if (!Arrays.equals(estimator.hashA, target.hashA)) {
+            throw new CMSMergeException("Cannot merge estimators of different seed");
+        }
+        if (estimator.hash64 != target.hash64) {
+            throw new CMSMergeException("Cannot merge estimators of different hashing");
+        }
+    }
+
+    private static long addSizes(long size, CountMinSketch estimator) {
+        long newSize = size + estimator.size;
+        checkSizeAfterOperation(size, "merge(" + estimator + ")", newSize);
+        return newSize;
+    }
+
+    /**
+     * Sums the cells in [from, to) of the flattened tables, splitting the range
+     * in halves until it is small enough to be summed on one thread.
+     */
+    @SuppressWarnings("serial")
+    private static class MergeTask extends RecursiveAction {
+
+        private static final int THRESHOLD = 1 << 16;
+
+        private final long[][] dest;
+        private final long[][][] sources;
+        private final int width;
+        private final long from;
+        private final long to;
+
+        MergeTask(long[][] dest, long[][][] sources, int width, long from, long to) {
+            this.dest = dest;
+            this.sources = sources;
+            this.width = width;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > THRESHOLD) {
+                long mid = (from + to) >>> 1;
+                invokeAll(new MergeTask(dest, sources, width, from, mid),
+                          new MergeTask(dest, sources, width, mid, to));
+                return;
+            }
+            long cell = from;
+            while (cell < to) {
+                int row = (int) (cell / width);
+                int start = (int) (cell % width);
+                int end = (int) Math.min(width, start + (to - cell));
+                long[] destRow = dest[row];
+                for (long[][] source : sources) {
+                    long[] sourceRow = source[row];
+                    for (int j = start; j < end; j++) {
+                        destRow[j] += sourceRow[j];
+                    }
+                }
+                cell += end - start;
+            }
+        }
+    }
+
     public static byte[] serialize(CountMinSketch sketch) {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         DataOutputStream s = new DataOutputStream(bos);
         try {
             s.writeLong(sketch.size);
-            s.writeInt(sketch.depth);
+            // complemented for sketches that hash with Filter.bucket, so older
+            // encodings read back with the legacy buckets
+            s.writeInt(sketch.hash64 ? ~sketch.depth : sketch.depth);
             s.writeInt(sketch.width);
             for (int i = 0; i < sketch.depth; ++i) {
                 s.writeLong(sketch.hashA[i]);
@@ -316,13 +513,66 @@ public class CountMinSketch implements IFrequency, Serializable {
         }
     }
 
+    /**
+     * Serializes the sketch in a compact encoding, which {@link #deserialize(byte[])}
+     * tells apart from the fixed width one by its leading version byte. Each row
+     * is written as a sequence of unsigned varints, where a token with the low
+     * bit set is a cell value and a token with the low bit clear is a run of
+     * empty cells, so sparse sketches and small counts take a few bytes per cell
+     * at most.
+     */
+    public static byte[] serializeCompact(CountMinSketch sketch) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream s = new DataOutputStream(bos);
+        try {
+            s.writeByte(sketch.hash64 ? COMPACT_VERSION_2 : COMPACT_VERSION_1);
+            Varint.writeUnsignedVarLong(sketch.size, s);
+            Varint.writeUnsignedVarInt(sketch.depth, s);
+            Varint.writeUnsignedVarInt(sketch.width, s);
+            for (int i = 0; i < sketch.depth; ++i) {
+                Varint.writeUnsignedVarLong(sketch.hashA[i], s);
+                long[] row = sketch.table[i];
+                int zeros = 0;
+                for (int j = 0; j < sketch.width; ++j) {
+                    if (row[j] == 0) {
+                        zeros++;
+                        continue;
+                    }
+                    if (zeros > 0) {
+                        Varint.writeUnsignedVarLong((long) zeros << 1, s);
+                        zeros = 0;
+                    }
+                    // counts are never negative, so the shifted value fits in 64 unsigned bits
+                    Varint.writeUnsignedVarLong((row[j] << 1) | 1, s);
+                }
+                if (zeros > 0) {
+                    Varint.writeUnsignedVarLong((long) zeros << 1, s);
+                }
+            }
+            s.close();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            // Shouldn't happen
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Deserializes sketches written by either {@link #serialize(CountMinSketch)}
+     * or {@link #serializeCompact(CountMinSketch)}.
+     */
     public static CountMinSketch deserialize(byte[] data) {
+        if (data.length > 0 && data[0] < 0) {
+            return deserializeCompact(data);
+        }
         ByteArrayInputStream bis = new ByteArrayInputStream(data);
         DataInputStream s = new DataInputStream(bis);
         try {
             CountMinSketch sketch = new CountMinSketch();
             sketch.size = s.readLong();
-            sketch.depth = s.readInt();
+            int depth = s.readInt();
+            sketch.hash64 = depth < 0;
+            sketch.depth = sketch.hash64 ? ~depth : depth;
             sketch.width = s.readInt();
             sketch.eps = 2.0 / sketch.width;
             sketch.confidence = 1 - 1 / Math.pow(2, sketch.depth);
@@ -341,6 +591,47 @@ public class CountMinSketch implements IFrequency, Serializable {
         }
     }
 
+    private static CountMinSketch deserializeCompact(byte[] data) {
+        ByteArrayInputStream bis = new ByteArrayInputStream(data);
+        DataInputStream s = new DataInputStream(bis);
+        try {
+            byte version = s.readByte();
+            if (version != COMPACT_VERSION_1 && version != COMPACT_VERSION_2) {
+                throw new IllegalArgumentException("Unknown CountMinSketch encoding version: " + version);
+            }
+            CountMinSketch sketch = new CountMinSketch();
+            sketch.hash64 = version == COMPACT_VERSION_2;
+            sketch.size = Varint.readUnsignedVarLong(s);
+            sketch.depth = Varint.readUnsignedVarInt(s);
+            sketch.width = Varint.readUnsignedVarInt(s);
+            sketch.eps = 2.0 / sketch.width;
+            sketch.confidence = 1 - 1 / Math.pow(2, sketch.depth);
+            sketch.hashA = new long[sketch.depth];
+            sketch.table = new long[sketch.depth][sketch.width];
+            for (int i = 0; i < sketch.depth; ++i) {
+                sketch.hashA[i] = Varint.readUnsignedVarLong(s);
+                long[] row = sketch.table[i];
+                int j = 0;
+                while (j < sketch.width) {
+                    long token = Varint.readUnsignedVarLong(s);
+                    if ((token & 1) == 0) {
+                        j += (int) (token >>> 1);
+                    } else {
+                        row[j++] = token >>> 1;
+                    }
+                }
+                if (j != sketch.width) {
+                    throw new IllegalArgumentException("Corrupt CountMinSketch encoding, row " + i +
+                            " has " + j + " cells instead of " + sketch.width);
+                }
+            }
+            return sketch;
+        } catch (IOException e) {
+            // Shouldn't happen
+            throw new RuntimeException(e);
+        }
+    }
+
     @SuppressWarnings("serial")
     protected static class CMSMergeException extends FrequencyMergeException {
 
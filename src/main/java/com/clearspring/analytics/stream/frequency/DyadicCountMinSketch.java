@@ -0,0 +1,268 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.frequency;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+import java.util.Arrays;
+
+import com.clearspring.analytics.stream.frequency.CountMinSketch.CMSMergeException;
+import com.clearspring.analytics.util.Preconditions;
+
+/**
+ * Hierarchical count min sketch over the integer keys [0, 2^bits). Level l
+ * holds a count min sketch of the keys shifted right by l bits, so every dyadic
+ * interval of the key space is a point in one of the levels. Any range is the
+ * union of at most 2 * bits dyadic intervals, which gives range counts and
+ * quantiles in O(bits) point lookups.
+ * <p/>
+ * See section 4.2 of the count min sketch paper
+ * https://web.archive.org/web/20060907232042/http://www.eecs.harvard.edu/~michaelm/CS222/countmin.pdf
+ */
+public class DyadicCountMinSketch implements Serializable {
+
+    private static final long serialVersionUID = 4184715627417372917L;
+
+    private int bits;
+    private long size;
+    // the top level, covering the whole key space, is just size
+    private CountMinSketch[] levels;
+
+    DyadicCountMinSketch() {
+    }
+
+    /**
+     * @param bits number of bits of the keys, keys must be in [0, 2^bits)
+     */
+    public DyadicCountMinSketch(int bits, int depth, int width, int seed) {
+        Preconditions.checkArgument(bits > 0 && bits < 64, "bits must be in [1, 63]: %s", bits);
+        this.bits = bits;
+        this.levels = new CountMinSketch[bits];
+        for (int i = 0; i < bits; i++) {
+            levels[i] = new CountMinSketch(depth, width, seed);
+        }
+    }
+
+    /**
+     * @param bits number of bits of the keys, keys must be in [0, 2^bits)
+     */
+    public DyadicCountMinSketch(int bits, double epsOfTotalCount, double confidence, int seed) {
+        Preconditions.checkArgument(bits > 0 && bits < 64, "bits must be in [1, 63]: %s", bits);
+        this.bits = bits;
+        this.levels = new CountMinSketch[bits];
+        for (int i = 0; i < bits; i++) {
+            levels[i] = new CountMinSketch(epsOfTotalCount, confidence, seed);
+        }
+    }
+
+    DyadicCountMinSketch(int bits, long size, CountMinSketch[] levels) {
+        this.bits = bits;
+        this.size = size;
+        this.levels = levels;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void add(long item, long count) {
+        checkItem(item);
+        for (int i = 0; i < bits; i++) {
+            levels[i].add(item >>> i, count);
+        }
+        size += count;
+    }
+
+    public long estimateCount(long item) {
+        checkItem(item);
+        return levels[0].estimateCount(item);
+    }
+
+    /**
+     * Estimates the total count of the keys in [lo, hi], both inclusive. The
+     * estimate never underestimates, and overestimates by at most
+     * 2 * bits * 'epsilon' * (total item count) with probability 'confidence'.
+     */
+    public long rangeCount(long lo, long hi) {
+        checkItem(lo);
+        checkItem(hi);
+        long sum = 0;
+        int level = 0;
+        while (lo <= hi) {
+            if (level == bits) {
+                // only the root is left, which covers the whole key space
+                sum += size;
+                break;
+            }
+            if ((lo & 1) == 1) {
+                sum += levels[level].estimateCount(lo++);
+            }
+            if (lo <= hi && (hi & 1) == 0) {
+                sum += levels[level].estimateCount(hi--);
+            }
+            lo >>>= 1;
+            hi >>= 1;
+            level++;
+        }
+        return sum;
+    }
+
+    /**
+     * @return estimated number of items smaller than or equal to item
+     */
+    public long rank(long item) {
+        return rangeCount(0, item);
+    }
+
+    /**
+     * Walks down the levels to find the smallest key whose estimated rank
+     * reaches q * size.
+     *
+     * @param q quantile in [0, 1]
+     * @return the estimated key at quantile q, or 0 if the sketch is empty
+     */
+    public long quantile(double q) {
+        Preconditions.checkArgument(q >= 0 && q <= 1, "q must be in [0, 1]: %s", q);
+        long target = Math.max(1, (long) Math.ceil(q * size));
+        long prefix = 0;
+        long node = 0;
+        for (int level = bits - 1; level >= 0; level--) {
+            long left = node << 1;
+            long count = levels[level].estimateCount(left);
+            if (prefix + count >= target) {
+                node = left;
+            } else {
+                prefix += count;
+                node = left + 1;
+            }
+        }
+        return node;
+    }
+
+    private void checkItem(long item) {
+        if (item < 0 || (item >>> bits) != 0) {
+            throw new IllegalArgumentException("Item " + item + " is outside of [0, 2^" + bits + ")");
+        }
+    }
+
+    /**
+     * Merges dyadic sketches to produce a dyadic sketch for their combined streams
+     *
+     * @param estimators
+     * @return merged estimator or null if no estimators were provided
+     * @throws CMSMergeException if estimators are not mergeable (same bits, depth, width and seed)
+     */
+    public static DyadicCountMinSketch merge(DyadicCountMinSketch... estimators) throws CMSMergeException {
+        if (estimators == null || estimators.length == 0) {
+            return null;
+        }
+        int bits = estimators[0].bits;
+        long size = 0;
+        for (DyadicCountMinSketch estimator : estimators) {
+            if (estimator.bits != bits) {
+                throw new CMSMergeException("Cannot merge estimators of different bits");
+            }
+            size += estimator.size;
+        }
+        CountMinSketch[] levels = new CountMinSketch[bits];
+        CountMinSketch[] level = new CountMinSketch[estimators.length];
+        for (int i = 0; i < bits; i++) {
+            for (int j = 0; j < estimators.length; j++) {
+                level[j] = estimators[j].levels[i];
+            }
+            levels[i] = CountMinSketch.merge(level);
+        }
+        return new DyadicCountMinSketch(bits, size, levels);
+    }
+
+    public static byte[] serialize(DyadicCountMinSketch sketch) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream s = new DataOutputStream(bos);
+        try {
+            s.writeInt(sketch.bits);
+            s.writeLong(sketch.size);
+            for (CountMinSketch level : sketch.levels) {
+                byte[] bytes = CountMinSketch.serialize(level);
+                s.writeInt(bytes.length);
+                s.write(bytes);
+            }
+            s.close();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            // Shouldn't happen
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static DyadicCountMinSketch deserialize(byte[] data) {
+        ByteArrayInputStream bis = new ByteArrayInputStream(data);
+        DataInputStream s = new DataInputStream(bis);
+        try {
+            DyadicCountMinSketch sketch = new DyadicCountMinSketch();
+            sketch.bits = s.readInt();
+            sketch.size = s.readLong();
+            sketch.levels = new CountMinSketch[sketch.bits];
+            for (int i = 0; i < sketch.bits; i++) {
+                byte[] bytes = new byte[s.readInt()];
+                s.readFully(bytes);
+                sketch.levels[i] = CountMinSketch.deserialize(bytes);
+            }
+            return sketch;
+        } catch (IOException e) {
+            // Shouldn't happen
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final DyadicCountMinSketch that = (DyadicCountMinSketch) o;
+
+        return bits == that.bits && size == that.size && Arrays.equals(levels, that.levels);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = bits;
+        result = 31 * result + (int) (size ^ (size >>> 32));
+        result = 31 * result + Arrays.hashCode(levels);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "DyadicCountMinSketch{" +
+                "bits=" + bits +
+                ", size=" + size +
+                ", levels=" + levels[0] +
+                '}';
+    }
+}
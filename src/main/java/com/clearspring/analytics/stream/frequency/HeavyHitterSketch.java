@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.frequency;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.clearspring.analytics.util.Pair;
+import com.clearspring.analytics.util.Preconditions;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+/**
+ * Tracks the most frequent items of a stream by pairing a count min sketch with
+ * a bounded min-heap of candidate items. Every add updates the sketch once and
+ * uses the resulting estimate to decide whether the item belongs in the heap:
+ * items already in the heap have their count refreshed, and new items replace
+ * the heap minimum when their estimate is larger.
+ * <p/>
+ * Memory is fixed by the sketch dimensions and the heap capacity. Items are
+ * kept as they were offered, so {@link #topK(int)} returns {@link String}s for
+ * items added as strings and {@link Long}s for items added as longs.
+ * <p/>
+ * Not thread safe.
+ */
+public class HeavyHitterSketch implements IFrequency {
+
+    private final CountMinSketch sketch;
+    private final int capacity;
+
+    private final Object[] items;
+    private final long[] counts;
+    private final Object2IntOpenHashMap<Object> positions;
+    private int heapSize;
+
+    /**
+     * Creates a tracker backed by a {@link ConservativeAddSketch}.
+     *
+     * @param capacity maximum number of candidate items kept in the heap
+     */
+    public HeavyHitterSketch(double epsOfTotalCount, double confidence, int seed, int capacity) {
+        this(new ConservativeAddSketch(epsOfTotalCount, confidence, seed), capacity);
+    }
+
+    /**
+     * @param sketch   an empty count min sketch that will be owned by this tracker
+     * @param capacity maximum number of candidate items kept in the heap
+     */
+    public HeavyHitterSketch(CountMinSketch sketch, int capacity) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive: %s", capacity);
+        Preconditions.checkArgument(sketch.size() == 0, "sketch must be empty");
+        this.sketch = sketch;
+        this.capacity = capacity;
+        this.items = new Object[capacity];
+        this.counts = new long[capacity];
+        this.positions = new Object2IntOpenHashMap<Object>(capacity);
+        this.positions.defaultReturnValue(-1);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public CountMinSketch getSketch() {
+        return sketch;
+    }
+
+    @Override
+    public void add(long item, long count) {
+        offer(item, sketch.addAndEstimate(item, count));
+    }
+
+    @Override
+    public void add(String item, long count) {
+        offer(item, sketch.addAndEstimate(item, count));
+    }
+
+    @Override
+    public long estimateCount(long item) {
+        return sketch.estimateCount(item);
+    }
+
+    @Override
+    public long estimateCount(String item) {
+        return sketch.estimateCount(item);
+    }
+
+    @Override
+    public long size() {
+        return sketch.size();
+    }
+
+    /**
+     * @param k
+     * @return up to k items with the highest estimated counts, in descending order of count
+     */
+    public List<Pair<Object, Long>> topK(int k) {
+        Preconditions.checkArgument(k >= 0, "k must not be negative: %s", k);
+        List<Pair<Object, Long>> result = new ArrayList<Pair<Object, Long>>(heapSize);
+        for (int i = 0; i < heapSize; i++) {
+            result.add(new Pair<Object, Long>(items[i], counts[i]));
+        }
+        Collections.sort(result, new Comparator<Pair<Object, Long>>() {
+            @Override
+            public int compare(Pair<Object, Long> o1, Pair<Object, Long> o2) {
+                return Long.compare(o2.right, o1.right);
+            }
+        });
+        return result.size() > k ? result.subList(0, k) : result;
+    }
+
+    private void offer(Object item, long estimate) {
+        int pos = positions.getInt(item);
+        if (pos >= 0) {
+            // estimates never decrease, so the entry can only move down the heap
+            counts[pos] = estimate;
+            siftDown(pos);
+        } else if (heapSize < capacity) {
+            items[heapSize] = item;
+            counts[heapSize] = estimate;
+            positions.put(item, heapSize);
+            siftUp(heapSize++);
+        } else if (estimate > counts[0]) {
+            positions.removeInt(items[0]);
+            items[0] = item;
+            counts[0] = estimate;
+            positions.put(item, 0);
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (counts[parent] <= counts[pos]) {
+                break;
+            }
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int pos) {
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && counts[child + 1] < counts[child]) {
+                child++;
+            }
+            if (counts[pos] <= counts[child]) {
+                break;
+            }
+            swap(pos, child);
+            pos = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        Object item = items[i];
+        long count = counts[i];
+        items[i] = items[j];
+        counts[i] = counts[j];
+        items[j] = item;
+        counts[j] = count;
+        positions.put(items[i], i);
+        positions.put(items[j], j);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.frequency;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Read-only view of a count min sketch serialized with
+ * {@link CountMinSketch#serialize(CountMinSketch)}. Point queries read the
+ * cells straight from the buffer, so a sketch archived to a file can be
+ * memory-mapped and queried without deserializing its table.
+ * <p/>
+ * The compact encoding does not allow random access to the cells and
+ * cannot be wrapped.
+ */
+public class ReadOnlyCountMinSketch implements IFrequency {
+
+    // size, depth and width
+    private static final int HEADER_BYTES = 16;
+
+    private final ByteBuffer buffer;
+    private final long size;
+    private final int depth;
+    private final int width;
+    private final long[] hashA;
+    private final boolean hash64;
+    private final int rowBytes;
+
+    /**
+     * @param buffer holds a serialized sketch between its position and limit,
+     *               which is not copied and must not be modified while in use
+     */
+    public ReadOnlyCountMinSketch(ByteBuffer buffer) {
+        this.buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        if (this.buffer.capacity() < HEADER_BYTES) {
+            throw new IllegalArgumentException("Buffer too small for a CountMinSketch: " + this.buffer.capacity());
+        }
+        this.size = this.buffer.getLong(0);
+        // the depth is complemented in sketches that hash String items with Filter.bucket
+        int serializedDepth = this.buffer.getInt(8);
+        this.hash64 = serializedDepth < 0;
+        this.depth = hash64 ? ~serializedDepth : serializedDepth;
+        this.width = this.buffer.getInt(12);
+        // the compact encoding starts with a byte that has the high bit set
+        if (size < 0 || depth <= 0 || width <= 0) {
+            throw new IllegalArgumentException("Not a fixed width CountMinSketch encoding");
+        }
+        // in longs, so that a corrupt header cannot overflow into a size that fits
+        long rowSize = 8 + 8L * width;
+        if ((this.buffer.remaining() - HEADER_BYTES) / rowSize < depth) {
+            throw new IllegalArgumentException("Buffer too small for a CountMinSketch of depth " + depth +
+                    " and width " + width + ": " + this.buffer.remaining());
+        }
+        // every offset into the buffer fits in an int from here on
+        this.rowBytes = (int) rowSize;
+        this.hashA = new long[depth];
+        for (int i = 0; i < depth; ++i) {
+            hashA[i] = this.buffer.getLong(HEADER_BYTES + i * rowBytes);
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public double getRelativeError() {
+        return 2.0 / width;
+    }
+
+    public double getConfidence() {
+        return 1 - 1 / Math.pow(2, depth);
+    }
+
+    @Override
+    public void add(long item, long count) {
+        throw new UnsupportedOperationException("ReadOnlyCountMinSketch cannot be modified");
+    }
+
+    @Override
+    public void add(String item, long count) {
+        throw new UnsupportedOperationException("ReadOnlyCountMinSketch cannot be modified");
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long estimateCount(long item) {
+        long res = Long.MAX_VALUE;
+        for (int i = 0; i < depth; ++i) {
+            res = Math.min(res, cell(i, CountMinSketch.hash(item, hashA[i], width)));
+        }
+        return res;
+    }
+
+    @Override
+    public long estimateCount(String item) {
+        long res = Long.MAX_VALUE;
+        long hashes = CountMinSketch.hashes(item, hash64);
+        for (int i = 0; i < depth; ++i) {
+            res = Math.min(res, cell(i, CountMinSketch.bucket(hashes, i, width, hash64)));
+        }
+        return res;
+    }
+
+    /**
+     * @return a heap copy of the sketch that can be updated
+     */
+    public CountMinSketch toCountMinSketch() {
+        long[][] table = new long[depth][width];
+        for (int i = 0; i < depth; ++i) {
+            ByteBuffer row = buffer.duplicate();
+            row.position(HEADER_BYTES + i * rowBytes + 8);
+            row.asLongBuffer().get(table[i]);
+        }
+        return new CountMinSketch(depth, width, size, hashA.clone(), table, hash64);
+    }
+
+    private long cell(int row, int column) {
+        return buffer.getLong(HEADER_BYTES + row * rowBytes + 8 + 8 * column);
+    }
+
+    @Override
+    public String toString() {
+        return "ReadOnlyCountMinSketch{" +
+                "depth=" + depth +
+                ", width=" + width +
+                ", size=" + size +
+                '}';
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.frequency;
+
+import java.util.Arrays;
+
+import com.clearspring.analytics.util.Preconditions;
+
+/**
+ * Count min sketch over a sliding window of the stream. The window is split
+ * into a ring of sub-sketches, one per interval, and a running sketch holds the
+ * cell-wise sum of the whole ring. Adds update the current interval and the
+ * running sketch; queries read the running sketch only, so an estimate costs a
+ * single count min lookup regardless of the number of intervals.
+ * <p/>
+ * Callers decide what an interval is and call {@link #advance()} at each
+ * interval boundary. Advancing subtracts the oldest interval from the running
+ * sketch and reuses its table for the new interval.
+ * <p/>
+ * Not thread safe.
+ */
+public class SlidingWindowCountMinSketch implements IFrequency {
+
+    private final CountMinSketch running;
+    private final CountMinSketch[] intervals;
+    private int current;
+
+    /**
+     * @param numIntervals number of intervals making up the window
+     */
+    public SlidingWindowCountMinSketch(int depth, int width, int seed, int numIntervals) {
+        Preconditions.checkArgument(numIntervals > 0, "numIntervals must be positive: %s", numIntervals);
+        this.running = new CountMinSketch(depth, width, seed);
+        this.intervals = new CountMinSketch[numIntervals];
+        for (int i = 0; i < numIntervals; i++) {
+            intervals[i] = new CountMinSketch(depth, width, seed);
+        }
+    }
+
+    /**
+     * @param numIntervals number of intervals making up the window
+     */
+    public SlidingWindowCountMinSketch(double epsOfTotalCount, double confidence, int seed, int numIntervals) {
+        Preconditions.checkArgument(numIntervals > 0, "numIntervals must be positive: %s", numIntervals);
+        this.running = new CountMinSketch(epsOfTotalCount, confidence, seed);
+        this.intervals = new CountMinSketch[numIntervals];
+        for (int i = 0; i < numIntervals; i++) {
+            intervals[i] = new CountMinSketch(epsOfTotalCount, confidence, seed);
+        }
+    }
+
+    public int getNumIntervals() {
+        return intervals.length;
+    }
+
+    public double getRelativeError() {
+        return running.getRelativeError();
+    }
+
+    public double getConfidence() {
+        return running.getConfidence();
+    }
+
+    @Override
+    public void add(long item, long count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative increments not implemented");
+        }
+        // every sketch shares the same seed, so the buckets can be computed once
+        long[][] runningTable = running.table;
+        long[][] currentTable = intervals[current].table;
+        for (int i = 0; i < running.depth; ++i) {
+            int bucket = running.hash(item, i);
+            runningTable[i][bucket] += count;
+            currentTable[i][bucket] += count;
+        }
+        running.size += count;
+        intervals[current].size += count;
+    }
+
+    @Override
+    public void add(String item, long count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative increments not implemented");
+        }
+        long[][] runningTable = running.table;
+        long[][] currentTable = intervals[current].table;
+        long hashes = running.hashes(item);
+        for (int i = 0; i < running.depth; ++i) {
+            int bucket = running.bucket(hashes, i);
+            runningTable[i][bucket] += count;
+            currentTable[i][bucket] += count;
+        }
+        running.size += count;
+        intervals[current].size += count;
+    }
+
+    /**
+     * The estimate is correct within 'epsilon' * (total item count in the window),
+     * with probability 'confidence'.
+     */
+    @Override
+    public long estimateCount(long item) {
+        return running.estimateCount(item);
+    }
+
+    @Override
+    public long estimateCount(String item) {
+        return running.estimateCount(item);
+    }
+
+    /**
+     * @return total count of all items currently in the window
+     */
+    @Override
+    public long size() {
+        return running.size;
+    }
+
+    /**
+     * Starts a new interval, dropping the oldest one from the window.
+     */
+    public void advance() {
+        current = (current + 1) % intervals.length;
+        CountMinSketch expired = intervals[current];
+        long[][] runningTable = running.table;
+        for (int i = 0; i < running.depth; ++i) {
+            long[] runningRow = runningTable[i];
+            long[] expiredRow = expired.table[i];
+            for (int j = 0; j < running.width; ++j) {
+                runningRow[j] -= expiredRow[j];
+            }
+            Arrays.fill(expiredRow, 0);
+        }
+        running.size -= expired.size;
+        expired.size = 0;
+    }
+
+    /**
+     * @return a copy of the running sketch, covering the whole window
+     */
+    public CountMinSketch snapshot() {
+        long[][] table = new long[running.depth][];
+        for (int i = 0; i < running.depth; ++i) {
+            table[i] = Arrays.copyOf(running.table[i], running.width);
+        }
+        return new CountMinSketch(running.depth, running.width, running.size,
+                Arrays.copyOf(running.hashA, running.depth), table, running.hash64);
+    }
+
+    @Override
+    public String toString() {
+        return "SlidingWindowCountMinSketch{" +
+                "eps=" + running.eps +
+                ", confidence=" + running.confidence +
+                ", depth=" + running.depth +
+                ", width=" + running.width +
+                ", intervals=" + intervals.length +
+                ", size=" + running.size +
+                '}';
+    }
+}
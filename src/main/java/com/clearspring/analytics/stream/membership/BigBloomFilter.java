@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+
+/**
+ * Bloom filter addressed with 64 bit bucket indexes, for filters larger than
+ * the 2^31 buckets a {@link java.util.BitSet} can hold. Buckets live in chunks
+ * of a long[][] so no single array gets too large, and the buckets are those
+ * of {@link Filter#bucket(long, int, long)}, 64 bit double hashing: h1 is a 64
+ * bit murmur hash of the key, h2 is derived from h1 with the murmur3
+ * finalizer, and (h1 + i * h2) is mapped onto the buckets with multiply-high
+ * range reduction instead of %.
+ */
+public class BigBloomFilter extends Filter {
+
+    // 2^24 longs, or 128MB, per chunk
+    private static final int CHUNK_SHIFT = 24;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    static ICompactSerializer<BigBloomFilter> serializer_ = new BigBloomFilterSerializer();
+
+    public static ICompactSerializer<BigBloomFilter> serializer() {
+        return serializer_;
+    }
+
+    private final long numBuckets;
+    private final long[][] chunks;
+
+    public BigBloomFilter(long numElements, int bucketsPerElement) {
+        this(BloomCalculations.computeBestK(bucketsPerElement), numElements * bucketsPerElement + 64,
+             newChunks(numElements * bucketsPerElement + 64));
+    }
+
+    public BigBloomFilter(long numElements, double maxFalsePosProbability) {
+        this(BloomCalculations.computeBucketsAndK(maxFalsePosProbability), numElements);
+    }
+
+    private BigBloomFilter(BloomCalculations.BloomSpecification spec, long numElements) {
+        this(spec.K, numElements * spec.bucketsPerElement + 64, newChunks(numElements * spec.bucketsPerElement + 64));
+    }
+
+    /*
+     * This version is only used by the deserializer.
+     */
+    BigBloomFilter(int hashes, long numBuckets, long[][] chunks) {
+        hashCount = hashes;
+        this.numBuckets = numBuckets;
+        this.chunks = chunks;
+    }
+
+    static long[][] newChunks(long numBuckets) {
+        if (numBuckets <= 0) {
+            throw new IllegalArgumentException("Invalid number of buckets: " + numBuckets);
+        }
+        long words = (numBuckets + 63) >>> 6;
+        int numChunks = (int) ((words + CHUNK_MASK) >>> CHUNK_SHIFT);
+        long[][] chunks = new long[numChunks][];
+        for (int i = 0; i < numChunks; i++) {
+            long remaining = words - ((long) i << CHUNK_SHIFT);
+            chunks[i] = new long[(int) Math.min(remaining, 1 << CHUNK_SHIFT)];
+        }
+        return chunks;
+    }
+
+    public void clear() {
+        for (long[] chunk : chunks) {
+            Arrays.fill(chunk, 0);
+        }
+    }
+
+    /**
+     * @return the number of buckets, or Integer.MAX_VALUE if it does not fit in an int
+     * @see #bucketCount()
+     */
+    int buckets() {
+        return (int) Math.min(Integer.MAX_VALUE, numBuckets);
+    }
+
+    public long bucketCount() {
+        return numBuckets;
+    }
+
+    long[][] chunks() {
+        return chunks;
+    }
+
+    public boolean isPresent(String key) {
+        return isPresent(hash64(key));
+    }
+
+    public boolean isPresent(byte[] key) {
+        return isPresent(hash64(key));
+    }
+
+    public void add(String key) {
+        add(hash64(key));
+    }
+
+    public void add(byte[] key) {
+        add(hash64(key));
+    }
+
+    private void add(long hash) {
+        for (int i = 0; i < hashCount; i++) {
+            long bucket = bucket(hash, i, numBuckets);
+            long word = bucket >>> 6;
+            chunks[(int) (word >>> CHUNK_SHIFT)][(int) word & CHUNK_MASK] |= 1L << bucket;
+        }
+    }
+
+    private boolean isPresent(long hash) {
+        for (int i = 0; i < hashCount; i++) {
+            long bucket = bucket(hash, i, numBuckets);
+            long word = bucket >>> 6;
+            if ((chunks[(int) (word >>> CHUNK_SHIFT)][(int) word & CHUNK_MASK] & (1L << bucket)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int emptyBuckets() {
+        long n = 0;
+        for (long[] chunk : chunks) {
+            for (long word : chunk) {
+                n += Long.bitCount(word);
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, numBuckets - n);
+    }
+
+    public void addAll(BigBloomFilter other) {
+        if (this.getHashCount() != other.getHashCount() || this.numBuckets != other.numBuckets) {
+            throw new IllegalArgumentException("Cannot merge filters of different sizes");
+        }
+        for (int i = 0; i < chunks.length; i++) {
+            long[] chunk = chunks[i];
+            long[] otherChunk = other.chunks[i];
+            for (int j = 0; j < chunk.length; j++) {
+                chunk[j] |= otherChunk[j];
+            }
+        }
+    }
+
+    public Filter merge(Filter... filters) {
+        long[][] copy = new long[chunks.length][];
+        for (int i = 0; i < chunks.length; i++) {
+            copy[i] = chunks[i].clone();
+        }
+        BigBloomFilter merged = new BigBloomFilter(this.getHashCount(), numBuckets, copy);
+
+        if (filters == null) {
+            return merged;
+        }
+
+        for (Filter filter : filters) {
+            if (!(filter instanceof BigBloomFilter)) {
+                throw new IllegalArgumentException("Cannot merge filters of different class");
+            }
+            merged.addAll((BigBloomFilter) filter);
+        }
+
+        return merged;
+    }
+
+    public String toString() {
+        return "BigBloomFilter{" +
+                "hashCount=" + hashCount +
+                ", buckets=" + numBuckets +
+                '}';
+    }
+}
+
+class BigBloomFilterSerializer implements ICompactSerializer<BigBloomFilter> {
+
+    public void serialize(BigBloomFilter bf, DataOutputStream dos) throws IOException {
+        dos.writeInt(bf.getHashCount());
+        dos.writeLong(bf.bucketCount());
+        for (long[] chunk : bf.chunks()) {
+            for (long word : chunk) {
+                dos.writeLong(word);
+            }
+        }
+    }
+
+    public BigBloomFilter deserialize(DataInputStream dis) throws IOException {
+        int hashes = dis.readInt();
+        long numBuckets = dis.readLong();
+        BigBloomFilter bf = new BigBloomFilter(hashes, numBuckets, BigBloomFilter.newChunks(numBuckets));
+        for (long[] chunk : bf.chunks()) {
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = dis.readLong();
+            }
+        }
+        return bf;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+/**
+ * Immutable membership filter built once from a known set of keys, after Graf
+ * and Lemire, "Binary Fuse Filters: Fast and Smaller Than Xor Filters". Each
+ * key maps to three slots of an array of 8 bit fingerprints chosen so that
+ * their xor is the key's fingerprint. A lookup reads three bytes, the false
+ * positive rate is 1/256 (0.4%), and large filters take 9 bits per key,
+ * against 12 for a {@link BloomFilter} at the same rate.
+ * <p/>
+ * Keys are 64 bit hashes, see {@link #hash(String)}. The filter can be written
+ * to a ByteBuffer and used from it in place with {@link #wrap(ByteBuffer)},
+ * for example from a memory-mapped file. Since the filter cannot be added to,
+ * {@link #add(String)} throws UnsupportedOperationException.
+ */
+public class BinaryFuseFilter extends Filter {
+
+    // "BFU8"
+    private static final int MAGIC = 0x42465538;
+    static final int HEADER_BYTES = 20;
+    private static final int ARITY = 3;
+    private static final int MAX_SEGMENT_LENGTH = 1 << 18;
+    private static final int MAX_ATTEMPTS = 100;
+
+    static ICompactSerializer<BinaryFuseFilter> serializer_ = new BinaryFuseFilterSerializer();
+
+    public static ICompactSerializer<BinaryFuseFilter> serializer() {
+        return serializer_;
+    }
+
+    private final int segmentLength;
+    private final int segmentLengthMask;
+    private final int segmentCount;
+    private final int segmentCountLength;
+    private final long seed;
+    private final ByteBuffer fingerprints;
+
+    private BinaryFuseFilter(int segmentCount, int segmentLength, long seed, ByteBuffer fingerprints) {
+        hashCount = ARITY;
+        this.segmentCount = segmentCount;
+        this.segmentLength = segmentLength;
+        this.segmentLengthMask = segmentLength - 1;
+        this.segmentCountLength = segmentCount * segmentLength;
+        this.seed = seed;
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * @return the key to build and query the filter with for a string, the
+     * same 64 bit murmur hash the other filters use
+     */
+    public static long hash(String key) {
+        return hash64(key);
+    }
+
+    public static long hash(byte[] key) {
+        return hash64(key);
+    }
+
+    /**
+     * Builds a filter holding the given keys. Duplicate keys are allowed.
+     *
+     * @throws IllegalArgumentException if the keys cannot be placed, which
+     *                                  only happens with a broken hash
+     */
+    public static BinaryFuseFilter build(long[] keys) {
+        long[] unique = keys.clone();
+        Arrays.sort(unique);
+        int size = 0;
+        for (int i = 0; i < unique.length; i++) {
+            if (i == 0 || unique[i] != unique[i - 1]) {
+                unique[size++] = unique[i];
+            }
+        }
+
+        int segmentLength = Math.min(MAX_SEGMENT_LENGTH, segmentLength(size));
+        int capacity = size <= 1 ? 0 : (int) Math.round(size * sizeFactor(size));
+        int segmentCount = (capacity + segmentLength - 1) / segmentLength - (ARITY - 1);
+        int arrayLength = (segmentCount + ARITY - 1) * segmentLength;
+        segmentCount = (arrayLength + segmentLength - 1) / segmentLength;
+        segmentCount = segmentCount <= ARITY - 1 ? 1 : segmentCount - (ARITY - 1);
+        arrayLength = (segmentCount + ARITY - 1) * segmentLength;
+
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            BinaryFuseFilter filter = new BinaryFuseFilter(segmentCount, segmentLength, seed,
+                                                           ByteBuffer.allocate(arrayLength));
+            if (filter.populate(unique, size, arrayLength)) {
+                return filter;
+            }
+            seed = mix64(seed + 0x9E3779B97F4A7C15L);
+        }
+        throw new IllegalArgumentException("Could not build filter of " + size + " keys");
+    }
+
+    static int segmentLength(int size) {
+        // 1 << floor(log_3.33(size) + 2.25), from the paper
+        return size == 0 ? 4 : 1 << (int) Math.floor(Math.log(size) / Math.log(3.33) + 2.25);
+    }
+
+    static double sizeFactor(int size) {
+        return Math.max(1.125, 0.875 + 0.25 * Math.log(1000000) / Math.log(size));
+    }
+
+    /**
+     * Peels the 3-hypergraph of the keys: repeatedly takes a slot that only
+     * one key maps to, then assigns the fingerprints in reverse order so
+     * each key gets the slot it was peeled from.
+     *
+     * @return false if the keys could not all be peeled with this seed
+     */
+    private boolean populate(long[] keys, int size, int arrayLength) {
+        long[] reverseOrder = new long[size + 1];
+        byte[] reverseH = new byte[size];
+        // the count of keys in the upper 6 bits, the xor of their hash
+        // indexes in the lower 2
+        byte[] t2count = new byte[arrayLength];
+        long[] t2hash = new long[arrayLength];
+        int[] alone = new int[arrayLength];
+
+        // sort the hashes by segment, so the counting below walks memory in order
+        int blockBits = 1;
+        while ((1 << blockBits) < segmentCount) {
+            blockBits++;
+        }
+        int block = 1 << blockBits;
+        int[] startPos = new int[block];
+        for (int i = 0; i < block; i++) {
+            startPos[i] = (int) ((long) i * size / block);
+        }
+        reverseOrder[size] = 1;
+        for (int i = 0; i < size; i++) {
+            long hash = mix64(keys[i] + seed);
+            int segmentIndex = (int) (hash >>> (64 - blockBits));
+            // zero marks a free position; a zero hash only lands at the end
+            while (reverseOrder[startPos[segmentIndex]] != 0) {
+                segmentIndex = (segmentIndex + 1) & (block - 1);
+            }
+            reverseOrder[startPos[segmentIndex]] = hash;
+            startPos[segmentIndex]++;
+        }
+
+        byte countMask = 0;
+        for (int i = 0; i < size; i++) {
+            long hash = reverseOrder[i];
+            for (int hi = 0; hi < ARITY; hi++) {
+                int index = index(hash, hi);
+                t2count[index] += 4;
+                t2count[index] ^= hi;
+                t2hash[index] ^= hash;
+                countMask |= t2count[index];
+            }
+        }
+        if (countMask < 0) {
+            // a slot counted more than 31 keys
+            return false;
+        }
+
+        int alonePos = 0;
+        for (int i = 0; i < arrayLength; i++) {
+            alone[alonePos] = i;
+            alonePos += (t2count[i] >> 2) == 1 ? 1 : 0;
+        }
+
+        int[] h012 = new int[5];
+        int reverseOrderPos = 0;
+        while (alonePos > 0) {
+            int index = alone[--alonePos];
+            if ((t2count[index] >> 2) != 1) {
+                continue;
+            }
+            long hash = t2hash[index];
+            int found = t2count[index] & 3;
+            reverseH[reverseOrderPos] = (byte) found;
+            reverseOrder[reverseOrderPos] = hash;
+            h012[0] = index(hash, 0);
+            h012[1] = index(hash, 1);
+            h012[2] = index(hash, 2);
+            for (int other = 1; other < ARITY; other++) {
+                int hi = mod3(found + other);
+                int otherIndex = h012[hi];
+                alone[alonePos] = otherIndex;
+                alonePos += (t2count[otherIndex] >> 2) == 2 ? 1 : 0;
+                t2count[otherIndex] -= 4;
+                t2count[otherIndex] ^= hi;
+                t2hash[otherIndex] ^= hash;
+            }
+            reverseOrderPos++;
+        }
+        if (reverseOrderPos != size) {
+            return false;
+        }
+
+        for (int i = size - 1; i >= 0; i--) {
+            long hash = reverseOrder[i];
+            int found = reverseH[i];
+            h012[0] = index(hash, 0);
+            h012[1] = index(hash, 1);
+            h012[2] = index(hash, 2);
+            h012[3] = h012[0];
+            h012[4] = h012[1];
+            fingerprints.put(h012[found], (byte) (fingerprint(hash) ^
+                                                  fingerprints.get(h012[found + 1]) ^
+                                                  fingerprints.get(h012[found + 2])));
+        }
+        return true;
+    }
+
+    private static int mod3(int x) {
+        return x > 2 ? x - 3 : x;
+    }
+
+    private static byte fingerprint(long hash) {
+        return (byte) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * The three slots of a hash lie in three consecutive segments: the first
+     * segment is picked by the high 32 bits and the offsets within the
+     * segments by the low 36.
+     */
+    private int index(long hash, int hi) {
+        int h = (int) (((hash >>> 32) * segmentCountLength) >>> 32) + hi * segmentLength;
+        long low = hash & ((1L << 36) - 1);
+        return h ^ (int) ((low >>> (36 - 18 * hi)) & segmentLengthMask);
+    }
+
+    public boolean isPresent(long key) {
+        long hash = mix64(key + seed);
+        int h0 = (int) (((hash >>> 32) * segmentCountLength) >>> 32);
+        int h1 = (h0 + segmentLength) ^ (int) ((hash >>> 18) & segmentLengthMask);
+        int h2 = (h0 + 2 * segmentLength) ^ (int) (hash & segmentLengthMask);
+        return (byte) (fingerprint(hash) ^ fingerprints.get(h0) ^ fingerprints.get(h1) ^ fingerprints.get(h2)) == 0;
+    }
+
+    public boolean isPresent(String key) {
+        return isPresent(hash(key));
+    }
+
+    public boolean isPresent(byte[] key) {
+        return isPresent(hash(key));
+    }
+
+    public void add(String key) {
+        throw new UnsupportedOperationException("BinaryFuseFilter is immutable");
+    }
+
+    int buckets() {
+        return fingerprints.capacity();
+    }
+
+    int emptyBuckets() {
+        int n = 0;
+        for (int i = 0; i < fingerprints.capacity(); i++) {
+            if (fingerprints.get(i) == 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of bytes {@link #writeTo(ByteBuffer)} writes
+     */
+    public int serializedSize() {
+        return HEADER_BYTES + fingerprints.capacity();
+    }
+
+    /**
+     * Writes the filter at the buffer's position: a 20 byte header of magic,
+     * segment count, segment length and seed, followed by the fingerprints.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.putInt(segmentCount);
+        buffer.putInt(segmentLength);
+        buffer.putLong(seed);
+        ByteBuffer source = fingerprints.duplicate();
+        source.clear();
+        buffer.put(source);
+    }
+
+    public static byte[] serialize(BinaryFuseFilter filter) {
+        ByteBuffer buffer = ByteBuffer.allocate(filter.serializedSize());
+        filter.writeTo(buffer);
+        return buffer.array();
+    }
+
+    public static BinaryFuseFilter deserialize(byte[] bytes) {
+        return wrap(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Uses a filter written by {@link #writeTo(ByteBuffer)} in place, starting
+     * at the buffer's position, without copying its fingerprints. The buffer's
+     * position is moved past the filter.
+     */
+    public static BinaryFuseFilter wrap(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a BinaryFuseFilter");
+        }
+        int segmentCount = buffer.getInt();
+        int segmentLength = buffer.getInt();
+        long seed = buffer.getLong();
+        if (segmentCount <= 0 || segmentLength <= 0 || Integer.bitCount(segmentLength) != 1 ||
+            segmentLength > MAX_SEGMENT_LENGTH) {
+            throw new IllegalArgumentException("Invalid BinaryFuseFilter header");
+        }
+        long arrayLength = ((long) segmentCount + ARITY - 1) * segmentLength;
+        if (arrayLength > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated BinaryFuseFilter: " + buffer.remaining() + " < " + arrayLength);
+        }
+        ByteBuffer fingerprints = buffer.slice();
+        fingerprints.limit((int) arrayLength);
+        buffer.position(buffer.position() + (int) arrayLength);
+        return new BinaryFuseFilter(segmentCount, segmentLength, seed, fingerprints.slice());
+    }
+
+    public String toString() {
+        return "BinaryFuseFilter{" +
+                "segments=" + segmentCount +
+                ", segmentLength=" + segmentLength +
+                ", buckets=" + fingerprints.capacity() +
+                '}';
+    }
+}
+
+class BinaryFuseFilterSerializer implements ICompactSerializer<BinaryFuseFilter> {
+
+    public void serialize(BinaryFuseFilter filter, DataOutputStream dos) throws IOException {
+        dos.writeInt(filter.serializedSize());
+        dos.write(BinaryFuseFilter.serialize(filter));
+    }
+
+    public BinaryFuseFilter deserialize(DataInputStream dis) throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return BinaryFuseFilter.deserialize(bytes);
+    }
+}
@@ -18,28 +18,193 @@
 */
 package com.clearspring.analytics.stream.membership;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.SequenceInputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import java.util.BitSet;
 
+/**
+ * Serializes a {@link BitSet} as a version header, its size in bits and its
+ * words as big endian longs. The size is kept so that a deserialized set has
+ * the same {@link BitSet#size()} as the original, which Bloom filters use as
+ * their number of buckets.
+ * <p/>
+ * Sets written with Java object serialization by earlier versions are still
+ * read; their stream header can never be mistaken for the version header.
+ */
 public class BitSetSerializer {
 
+    // "BS" followed by the format version, unlike the 0xACED object stream magic
+    private static final int RAW_V1 = 0x42530001;
+    private static final int HEADER_BYTES = 8;
+    // bytes copied per channel operation
+    private static final int CHANNEL_CHUNK = 1 << 16;
+
     public static void serialize(BitSet bs, DataOutputStream dos) throws IOException {
+        long[] words = bs.toLongArray();
+        int numWords = bs.size() / Long.SIZE;
+        dos.writeInt(RAW_V1);
+        dos.writeInt(bs.size());
+        for (long word : words) {
+            dos.writeLong(word);
+        }
+        for (int i = words.length; i < numWords; i++) {
+            dos.writeLong(0);
+        }
+    }
+
+    /**
+     * Writes the set with Java object serialization, as earlier versions did.
+     */
+    public static void serializeLegacy(BitSet bs, DataOutputStream dos) throws IOException {
         ObjectOutputStream oos = new ObjectOutputStream(dos);
         oos.writeObject(bs);
         oos.flush();
     }
 
+    /**
+     * @return the number of bytes {@link #serialize(BitSet, DataOutputStream)} writes for the set
+     */
+    public static int serializedSize(BitSet bs) {
+        return HEADER_BYTES + bs.size() / Byte.SIZE;
+    }
+
+    /**
+     * Writes the set at the position of the buffer, which must have
+     * {@link #serializedSize(BitSet)} bytes remaining.
+     */
+    public static void serialize(BitSet bs, ByteBuffer buffer) {
+        long[] words = bs.toLongArray();
+        int numWords = bs.size() / Long.SIZE;
+        buffer.putInt(RAW_V1);
+        buffer.putInt(bs.size());
+        LongBuffer longs = buffer.asLongBuffer();
+        longs.put(words);
+        for (int i = words.length; i < numWords; i++) {
+            longs.put(0);
+        }
+        buffer.position(buffer.position() + numWords * 8);
+    }
+
+    public static void serialize(BitSet bs, WritableByteChannel channel) throws IOException {
+        long[] words = bs.toLongArray();
+        int numWords = bs.size() / Long.SIZE;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHANNEL_CHUNK);
+        buffer.putInt(RAW_V1);
+        buffer.putInt(bs.size());
+        for (int i = 0; i < numWords; i++) {
+            if (buffer.remaining() < 8) {
+                writeFully(buffer, channel);
+            }
+            buffer.putLong(i < words.length ? words[i] : 0);
+        }
+        writeFully(buffer, channel);
+    }
+
+    private static void writeFully(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
     public static BitSet deserialize(DataInputStream dis) throws IOException {
-        ObjectInputStream ois = new ObjectInputStream(dis);
+        int header = dis.readInt();
+        if (header != RAW_V1) {
+            // put the header back in front of the object stream
+            byte[] headerBytes = ByteBuffer.allocate(4).putInt(header).array();
+            return deserializeLegacy(new SequenceInputStream(new ByteArrayInputStream(headerBytes), dis));
+        }
+        int nbits = dis.readInt();
+        long[] words = new long[nbits / Long.SIZE];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = dis.readLong();
+        }
+        return toBitSet(words, nbits);
+    }
+
+    /**
+     * Reads a set from the position of the buffer and advances past it.
+     */
+    public static BitSet deserialize(ByteBuffer buffer) throws IOException {
+        int header = buffer.getInt(buffer.position());
+        if (header != RAW_V1) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return deserializeLegacy(new ByteArrayInputStream(bytes));
+        }
+        buffer.position(buffer.position() + 4);
+        int nbits = buffer.getInt();
+        long[] words = new long[nbits / Long.SIZE];
+        buffer.asLongBuffer().get(words);
+        buffer.position(buffer.position() + words.length * 8);
+        return toBitSet(words, nbits);
+    }
+
+    /**
+     * Reads a set written by {@link #serialize(BitSet, WritableByteChannel)}.
+     */
+    public static BitSet deserialize(ReadableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHANNEL_CHUNK);
+        buffer.limit(HEADER_BYTES);
+        readFully(buffer, channel);
+        int header = buffer.getInt();
+        if (header != RAW_V1) {
+            throw new IOException("Unknown BitSet encoding: " + Integer.toHexString(header));
+        }
+        int nbits = buffer.getInt();
+        long[] words = new long[nbits / Long.SIZE];
+        int read = 0;
+        while (read < words.length) {
+            buffer.clear();
+            buffer.limit(Math.min(CHANNEL_CHUNK, (words.length - read) * 8));
+            readFully(buffer, channel);
+            LongBuffer longs = buffer.asLongBuffer();
+            int n = longs.remaining();
+            longs.get(words, read, n);
+            read += n;
+        }
+        return toBitSet(words, nbits);
+    }
+
+    private static void readFully(ByteBuffer buffer, ReadableByteChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of BitSet encoding");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static BitSet deserializeLegacy(InputStream in) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(in);
         try {
             return (BitSet) ois.readObject();
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e);
         }
     }
+
+    private static BitSet toBitSet(long[] words, int nbits) {
+        BitSet bs = BitSet.valueOf(words);
+        if (bs.size() != nbits) {
+            // valueOf drops trailing empty words, so restore the original size
+            BitSet sized = new BitSet(nbits);
+            sized.or(bs);
+            bs = sized;
+        }
+        return bs;
+    }
 }
@@ -0,0 +1,210 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+
+/**
+ * Bloom filter that confines all the hashes of a key to one 512 bit
+ * (64 byte) block, so a lookup touches a single cache line instead of up to
+ * hashCount of them. The block and the bits within it are all derived from one
+ * 64 bit murmur hash: the low half picks the block by multiply-shift range
+ * reduction, and each bit position is the top 9 bits of the high half times an
+ * odd constant.
+ * <p/>
+ * Blocking raises the false positive rate slightly for a given size, so the
+ * constructors size the filter with
+ * {@link BloomCalculations#computeBlockedBucketsAndK(double, int)}.
+ * <p/>
+ * See Putze, Sanders and Singler, "Cache-, Hash- and Space-Efficient Bloom Filters".
+ */
+public class BlockedBloomFilter extends Filter {
+
+    static final int BITS_PER_BLOCK = 512;
+    private static final int WORDS_PER_BLOCK = BITS_PER_BLOCK / 64;
+
+    // odd multipliers, one per hash function
+    private static final int[] SALTS = {
+            0x47b6137b, 0x44974d91, 0x8824ad5b, 0xa2b7289d, 0x705495c7, 0x2df1424b, 0x9efc4947, 0x5c6bfb31,
+            0x1b873593, 0xcc9e2d51, 0x85ebca6b, 0xc2b2ae35, 0xe6546b64, 0x27d4eb2f, 0x165667b1, 0x9e3779b1
+    };
+
+    static ICompactSerializer<BlockedBloomFilter> serializer_ = new BlockedBloomFilterSerializer();
+
+    public static ICompactSerializer<BlockedBloomFilter> serializer() {
+        return serializer_;
+    }
+
+    private final long[] words;
+    private final int numBlocks;
+
+    public BlockedBloomFilter(int numElements, int bucketsPerElement) {
+        this(Math.min(BloomCalculations.computeBestK(bucketsPerElement), SALTS.length),
+             newWords((long) numElements * bucketsPerElement));
+    }
+
+    public BlockedBloomFilter(int numElements, double maxFalsePosProbability) {
+        this(BloomCalculations.computeBlockedBucketsAndK(maxFalsePosProbability, BITS_PER_BLOCK), numElements);
+    }
+
+    private BlockedBloomFilter(BloomCalculations.BloomSpecification spec, int numElements) {
+        this(spec.K, newWords((long) numElements * spec.bucketsPerElement));
+    }
+
+    /*
+     * This version is only used by the deserializer.
+     */
+    BlockedBloomFilter(int hashes, long[] words) {
+        if (hashes < 1 || hashes > SALTS.length) {
+            throw new IllegalArgumentException("hash count must be in [1, " + SALTS.length + "]: " + hashes);
+        }
+        hashCount = hashes;
+        this.words = words;
+        this.numBlocks = words.length / WORDS_PER_BLOCK;
+    }
+
+    private static long[] newWords(long buckets) {
+        long blocks = Math.max(1, (buckets + BITS_PER_BLOCK - 1) / BITS_PER_BLOCK);
+        if (blocks * WORDS_PER_BLOCK > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many buckets for a BlockedBloomFilter: " + buckets);
+        }
+        return new long[(int) blocks * WORDS_PER_BLOCK];
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0);
+    }
+
+    /**
+     * @return the number of buckets, or Integer.MAX_VALUE if it does not fit in an int
+     */
+    int buckets() {
+        return (int) Math.min(Integer.MAX_VALUE, (long) numBlocks * BITS_PER_BLOCK);
+    }
+
+    long[] words() {
+        return words;
+    }
+
+    public boolean isPresent(String key) {
+        return isPresent(hash64(key));
+    }
+
+    public boolean isPresent(byte[] key) {
+        return isPresent(hash64(key));
+    }
+
+    public void add(String key) {
+        add(hash64(key));
+    }
+
+    public void add(byte[] key) {
+        add(hash64(key));
+    }
+
+    private void add(long hash) {
+        int base = block(hash);
+        int h = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (h * SALTS[i]) >>> 23;
+            words[base + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private boolean isPresent(long hash) {
+        int base = block(hash);
+        int h = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (h * SALTS[i]) >>> 23;
+            if ((words[base + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the first word of the block for the hash
+     */
+    private int block(long hash) {
+        return (int) (((hash & 0xFFFFFFFFL) * numBlocks) >>> 32) * WORDS_PER_BLOCK;
+    }
+
+    int emptyBuckets() {
+        int n = 0;
+        for (long word : words) {
+            n += Long.SIZE - Long.bitCount(word);
+        }
+        return n;
+    }
+
+    public void addAll(BlockedBloomFilter other) {
+        if (this.getHashCount() != other.getHashCount() || this.numBlocks != other.numBlocks) {
+            throw new IllegalArgumentException("Cannot merge filters of different sizes");
+        }
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= other.words[i];
+        }
+    }
+
+    public Filter merge(Filter... filters) {
+        BlockedBloomFilter merged = new BlockedBloomFilter(this.getHashCount(), words.clone());
+
+        if (filters == null) {
+            return merged;
+        }
+
+        for (Filter filter : filters) {
+            if (!(filter instanceof BlockedBloomFilter)) {
+                throw new IllegalArgumentException("Cannot merge filters of different class");
+            }
+            merged.addAll((BlockedBloomFilter) filter);
+        }
+
+        return merged;
+    }
+
+    public String toString() {
+        return "BlockedBloomFilter{" +
+                "hashCount=" + hashCount +
+                ", blocks=" + numBlocks +
+                '}';
+    }
+}
+
+class BlockedBloomFilterSerializer implements ICompactSerializer<BlockedBloomFilter> {
+
+    public void serialize(BlockedBloomFilter bf, DataOutputStream dos) throws IOException {
+        long[] words = bf.words();
+        dos.writeInt(bf.getHashCount());
+        dos.writeInt(words.length);
+        for (long word : words) {
+            dos.writeLong(word);
+        }
+    }
+
+    public BlockedBloomFilter deserialize(DataInputStream dis) throws IOException {
+        int hashes = dis.readInt();
+        long[] words = new long[dis.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = dis.readLong();
+        }
+        return new BlockedBloomFilter(hashes, words);
+    }
+}
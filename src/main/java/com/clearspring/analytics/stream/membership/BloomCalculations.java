@@ -33,6 +33,8 @@ public class BloomCalculations {
     private static final int minBuckets = 2;
     private static final int minK = 1;
     private static final int maxK = 8;
+    private static final int maxBlockedBuckets = 64;
+    private static final int maxBlockedK = 16;
     private static final int[] optKPerBuckets =
             new int[]{1, // dummy K for 0 buckets per element
                       1, // dummy K for 1 buckets per element
@@ -136,6 +138,70 @@ public class BloomCalculations {
         return new BloomSpecification(K, bucketsPerElement);
     }
 
+    /**
+     * Given a maximum tolerable false positive probability, compute a Bloom
+     * specification for a blocked Bloom filter, where all the hashes of an
+     * element fall in a single block of bitsPerBlock buckets. Blocking makes
+     * the load uneven across blocks, so a blocked filter needs a few more
+     * buckets per element than {@link #computeBucketsAndK(double)} returns to
+     * reach the same false positive rate.
+     *
+     * @param maxFalsePosProb The maximum tolerable false positive rate.
+     * @param bitsPerBlock    The number of buckets in a block.
+     * @return A Bloom Specification which would result in a false positive rate
+     * less than specified by the function call.
+     */
+    public static BloomSpecification computeBlockedBucketsAndK(double maxFalsePosProb, int bitsPerBlock) {
+        int bucketsPerElement = Math.max(minBuckets, computeBucketsAndK(maxFalsePosProb).bucketsPerElement);
+        while (true) {
+            int K = minK;
+            for (int k = minK + 1; k <= maxBlockedK; k++) {
+                if (getBlockedFalsePositiveProbability(bitsPerBlock, bucketsPerElement, k) <
+                    getBlockedFalsePositiveProbability(bitsPerBlock, bucketsPerElement, K)) {
+                    K = k;
+                }
+            }
+            if (getBlockedFalsePositiveProbability(bitsPerBlock, bucketsPerElement, K) <= maxFalsePosProb ||
+                bucketsPerElement == maxBlockedBuckets) {
+                // Relax K as long as the rate stays below the maximum
+                while (K > minK &&
+                       getBlockedFalsePositiveProbability(bitsPerBlock, bucketsPerElement, K - 1) <= maxFalsePosProb) {
+                    K--;
+                }
+                return new BloomSpecification(K, bucketsPerElement);
+            }
+            bucketsPerElement++;
+        }
+    }
+
+    /**
+     * Calculate the probability of a false positive for a blocked Bloom filter.
+     * The number of elements falling in a block follows a Poisson distribution,
+     * so this is the Poisson weighted average of the false positive rates of a
+     * standard filter of bitsPerBlock buckets holding i elements.
+     *
+     * @param bitsPerBlock      number of buckets in a block.
+     * @param bucketsPerElement number of buckets per inserted element.
+     * @param hashCount
+     * @return probability of a false positive.
+     */
+    public static double getBlockedFalsePositiveProbability(int bitsPerBlock, int bucketsPerElement, int hashCount) {
+        double elementsPerBlock = bitsPerBlock / (double) bucketsPerElement;
+        // the Poisson weights are accumulated as logarithms so that they do not underflow
+        double logPoisson = -elementsPerBlock;
+        double poisson = 1;
+        double result = 0;
+        for (int i = 0; i < elementsPerBlock || poisson > 1e-12; i++) {
+            if (i > 0) {
+                logPoisson += Math.log(elementsPerBlock / i);
+            }
+            poisson = Math.exp(logPoisson);
+            double bitSet = 1 - Math.pow(1 - 1.0 / bitsPerBlock, (double) i * hashCount);
+            result += poisson * Math.pow(bitSet, hashCount);
+        }
+        return result;
+    }
+
     /**
      * Calculate the probability of a false positive given the specified
      * number of inserted elements.
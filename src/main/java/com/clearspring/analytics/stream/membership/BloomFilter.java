@@ -22,6 +22,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+
 import java.util.BitSet;
 
 public class BloomFilter extends Filter {
@@ -45,12 +47,17 @@ public class BloomFilter extends Filter {
         hashCount = spec.K;
     }
 
+    BloomFilter(int hashes, BitSet filter) {
+        this(hashes, filter, false);
+    }
+
     /*
-     * This version is only used by the deserializer.
+     * This version is only used by the deserializer and merge.
      */
-    BloomFilter(int hashes, BitSet filter) {
+    BloomFilter(int hashes, BitSet filter, boolean legacyHashing) {
         hashCount = hashes;
         filter_ = filter;
+        this.legacyHashing = legacyHashing;
     }
 
     public void clear() {
@@ -66,17 +73,17 @@ public class BloomFilter extends Filter {
     }
 
     public boolean isPresent(String key) {
-        for (int bucketIndex : getHashBuckets(key)) {
-            if (!filter_.get(bucketIndex)) {
-                return false;
-            }
-        }
-        return true;
+        return isPresent(hashes(key));
     }
 
     public boolean isPresent(byte[] key) {
-        for (int bucketIndex : getHashBuckets(key)) {
-            if (!filter_.get(bucketIndex)) {
+        return isPresent(hashes(key));
+    }
+
+    boolean isPresent(long hashes) {
+        int buckets = buckets();
+        for (int i = 0; i < hashCount; i++) {
+            if (!filter_.get(probe(hashes, i, buckets))) {
                 return false;
             }
         }
@@ -89,14 +96,17 @@ public class BloomFilter extends Filter {
      This is a general purpose API.
      */
     public void add(String key) {
-        for (int bucketIndex : getHashBuckets(key)) {
-            filter_.set(bucketIndex);
-        }
+        add(hashes(key));
     }
 
     public void add(byte[] key) {
-        for (int bucketIndex : getHashBuckets(key)) {
-            filter_.set(bucketIndex);
+        add(hashes(key));
+    }
+
+    void add(long hashes) {
+        int buckets = buckets();
+        for (int i = 0; i < hashCount; i++) {
+            filter_.set(probe(hashes, i, buckets));
         }
     }
 
@@ -122,12 +132,15 @@ public class BloomFilter extends Filter {
         if (this.getHashCount() != other.getHashCount()) {
             throw new IllegalArgumentException("Cannot merge filters of different sizes");
         }
+        if (this.legacyHashing != other.legacyHashing) {
+            throw new IllegalArgumentException("Cannot merge filters of different hashing");
+        }
 
         this.filter().or(other.filter());
     }
 
     public Filter merge(Filter... filters) {
-        BloomFilter merged = new BloomFilter(this.getHashCount(), (BitSet) this.filter().clone());
+        BloomFilter merged = new BloomFilter(this.getHashCount(), (BitSet) this.filter().clone(), legacyHashing);
 
         if (filters == null) {
             return merged;
@@ -154,24 +167,18 @@ public class BloomFilter extends Filter {
     }
 
     public static byte[] serialize(BloomFilter filter) {
-        DataOutputBuffer out = new DataOutputBuffer();
-        try {
-            BloomFilter.serializer().serialize(filter, out);
-            out.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return out.getData();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + BitSetSerializer.serializedSize(filter.filter()));
+        buffer.putInt(filter.serializedHashCount());
+        BitSetSerializer.serialize(filter.filter(), buffer);
+        return buffer.array();
     }
 
     public static BloomFilter deserialize(byte[] bytes) {
         BloomFilter filter = null;
-        DataInputBuffer in = new DataInputBuffer();
-        in.reset(bytes, bytes.length);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
         try {
-            filter = BloomFilter.serializer().deserialize(in);
-            in.close();
+            int hashes = buffer.getInt();
+            filter = new BloomFilter(hashCount(hashes), BitSetSerializer.deserialize(buffer), isLegacyHashing(hashes));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -184,13 +191,13 @@ class BloomFilterSerializer implements ICompactSerializer<BloomFilter> {
 
     public void serialize(BloomFilter bf, DataOutputStream dos)
             throws IOException {
-        dos.writeInt(bf.getHashCount());
+        dos.writeInt(bf.serializedHashCount());
         BitSetSerializer.serialize(bf.filter(), dos);
     }
 
     public BloomFilter deserialize(DataInputStream dis) throws IOException {
         int hashes = dis.readInt();
         BitSet bs = BitSetSerializer.deserialize(dis);
-        return new BloomFilter(hashes, bs);
+        return new BloomFilter(Filter.hashCount(hashes), bs, Filter.isLegacyHashing(hashes));
     }
 }
@@ -0,0 +1,225 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe Bloom filter backed by an {@link AtomicLongArray}. Bits are set
+ * with a compare-and-set loop that is skipped when the bit is already set, so
+ * adding keys that are mostly present costs little more than a lookup, and
+ * lookups are plain volatile reads. No locks are taken.
+ * <p/>
+ * Hashing is the same as {@link BigBloomFilter}: 64 bit double hashing from
+ * one murmur hash, reduced onto the buckets with multiply-high.
+ */
+public class ConcurrentBloomFilter extends Filter {
+
+    static ICompactSerializer<ConcurrentBloomFilter> serializer_ = new ConcurrentBloomFilterSerializer();
+
+    public static ICompactSerializer<ConcurrentBloomFilter> serializer() {
+        return serializer_;
+    }
+
+    private final long numBuckets;
+    private final AtomicLongArray words;
+
+    public ConcurrentBloomFilter(int numElements, int bucketsPerElement) {
+        this(BloomCalculations.computeBestK(bucketsPerElement), (long) numElements * bucketsPerElement + 64);
+    }
+
+    public ConcurrentBloomFilter(int numElements, double maxFalsePosProbability) {
+        this(BloomCalculations.computeBucketsAndK(maxFalsePosProbability), numElements);
+    }
+
+    private ConcurrentBloomFilter(BloomCalculations.BloomSpecification spec, int numElements) {
+        this(spec.K, (long) numElements * spec.bucketsPerElement + 64);
+    }
+
+    ConcurrentBloomFilter(int hashes, long numBuckets) {
+        if (numBuckets <= 0 || ((numBuckets + 63) >>> 6) > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Invalid number of buckets: " + numBuckets);
+        }
+        hashCount = hashes;
+        this.numBuckets = numBuckets;
+        this.words = new AtomicLongArray((int) ((numBuckets + 63) >>> 6));
+    }
+
+    /**
+     * Not atomic with respect to concurrent adds.
+     */
+    public void clear() {
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, 0);
+        }
+    }
+
+    /**
+     * @return the number of buckets, or Integer.MAX_VALUE if it does not fit in an int
+     */
+    int buckets() {
+        return (int) Math.min(Integer.MAX_VALUE, numBuckets);
+    }
+
+    long bucketCount() {
+        return numBuckets;
+    }
+
+    AtomicLongArray words() {
+        return words;
+    }
+
+    public boolean isPresent(String key) {
+        return isPresent(hash64(key));
+    }
+
+    public boolean isPresent(byte[] key) {
+        return isPresent(hash64(key));
+    }
+
+    public void add(String key) {
+        add(hash64(key));
+    }
+
+    public void add(byte[] key) {
+        add(hash64(key));
+    }
+
+    /**
+     * Adds the key and reports whether it was probably new, like a
+     * putIfAbsent. A false return means every bucket of the key was already
+     * set, so the key was added before or is a false positive. Threads adding
+     * the same new key at the same time may all get true.
+     *
+     * @return true if the key set at least one bucket
+     */
+    public boolean addIfNotPresent(String key) {
+        return add(hash64(key));
+    }
+
+    public boolean addIfNotPresent(byte[] key) {
+        return add(hash64(key));
+    }
+
+    private boolean add(long hash) {
+        boolean added = false;
+        for (int i = 0; i < hashCount; i++) {
+            added |= setBit(bucket(hash, i, numBuckets));
+        }
+        return added;
+    }
+
+    private boolean isPresent(long hash) {
+        for (int i = 0; i < hashCount; i++) {
+            long bucket = bucket(hash, i, numBuckets);
+            if ((words.get((int) (bucket >>> 6)) & (1L << bucket)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if this call set the bit
+     */
+    private boolean setBit(long bucket) {
+        int index = (int) (bucket >>> 6);
+        long mask = 1L << bucket;
+        long word = words.get(index);
+        while ((word & mask) == 0) {
+            if (words.compareAndSet(index, word, word | mask)) {
+                return true;
+            }
+            word = words.get(index);
+        }
+        return false;
+    }
+
+    int emptyBuckets() {
+        long n = 0;
+        for (int i = 0; i < words.length(); i++) {
+            n += Long.bitCount(words.get(i));
+        }
+        return (int) Math.min(Integer.MAX_VALUE, numBuckets - n);
+    }
+
+    /**
+     * Adds the keys of the other filter to this one. Safe to call while other
+     * threads add to either filter.
+     */
+    public void addAll(ConcurrentBloomFilter other) {
+        if (this.getHashCount() != other.getHashCount() || this.numBuckets != other.numBuckets) {
+            throw new IllegalArgumentException("Cannot merge filters of different sizes");
+        }
+        for (int i = 0; i < words.length(); i++) {
+            long bits = other.words.get(i);
+            long word = words.get(i);
+            while ((word | bits) != word && !words.compareAndSet(i, word, word | bits)) {
+                word = words.get(i);
+            }
+        }
+    }
+
+    public Filter merge(Filter... filters) {
+        ConcurrentBloomFilter merged = new ConcurrentBloomFilter(this.getHashCount(), numBuckets);
+        merged.addAll(this);
+
+        if (filters == null) {
+            return merged;
+        }
+
+        for (Filter filter : filters) {
+            if (!(filter instanceof ConcurrentBloomFilter)) {
+                throw new IllegalArgumentException("Cannot merge filters of different class");
+            }
+            merged.addAll((ConcurrentBloomFilter) filter);
+        }
+
+        return merged;
+    }
+
+    public String toString() {
+        return "ConcurrentBloomFilter{" +
+                "hashCount=" + hashCount +
+                ", buckets=" + numBuckets +
+                '}';
+    }
+}
+
+class ConcurrentBloomFilterSerializer implements ICompactSerializer<ConcurrentBloomFilter> {
+
+    public void serialize(ConcurrentBloomFilter bf, DataOutputStream dos) throws IOException {
+        AtomicLongArray words = bf.words();
+        dos.writeInt(bf.getHashCount());
+        dos.writeLong(bf.bucketCount());
+        for (int i = 0; i < words.length(); i++) {
+            dos.writeLong(words.get(i));
+        }
+    }
+
+    public ConcurrentBloomFilter deserialize(DataInputStream dis) throws IOException {
+        int hashes = dis.readInt();
+        ConcurrentBloomFilter bf = new ConcurrentBloomFilter(hashes, dis.readLong());
+        AtomicLongArray words = bf.words();
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, dis.readLong());
+        }
+        return bf;
+    }
+}
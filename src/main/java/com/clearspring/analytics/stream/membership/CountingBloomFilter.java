@@ -0,0 +1,237 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+
+/**
+ * Bloom filter that supports removing keys. Each bucket is a 4 bit counter,
+ * sixteen to a long, instead of a single bit. Counters saturate at 15 and a
+ * saturated counter is never decremented again, since its true count is no
+ * longer known; such buckets stay set for the life of the filter.
+ * <p/>
+ * Hashing and sizing are the same as {@link BloomFilter}, so the filter
+ * takes four times the memory for the same false positive rate.
+ */
+public class CountingBloomFilter extends Filter {
+
+    private static final long MAX_COUNT = 15;
+
+    static ICompactSerializer<CountingBloomFilter> serializer_ = new CountingBloomFilterSerializer();
+
+    public static ICompactSerializer<CountingBloomFilter> serializer() {
+        return serializer_;
+    }
+
+    private final int numBuckets;
+    private final long[] counters;
+
+    public CountingBloomFilter(int numElements, int bucketsPerElement) {
+        this(BloomCalculations.computeBestK(bucketsPerElement), numElements * bucketsPerElement + 20,
+             newCounters(numElements * bucketsPerElement + 20));
+    }
+
+    public CountingBloomFilter(int numElements, double maxFalsePosProbability) {
+        this(BloomCalculations.computeBucketsAndK(maxFalsePosProbability), numElements);
+    }
+
+    private CountingBloomFilter(BloomCalculations.BloomSpecification spec, int numElements) {
+        this(spec.K, numElements * spec.bucketsPerElement + 20, newCounters(numElements * spec.bucketsPerElement + 20));
+    }
+
+    /*
+     * This version is only used by the deserializer.
+     */
+    CountingBloomFilter(int hashes, int numBuckets, long[] counters) {
+        hashCount = hashes;
+        this.numBuckets = numBuckets;
+        this.counters = counters;
+    }
+
+    static long[] newCounters(int numBuckets) {
+        if (numBuckets <= 0) {
+            throw new IllegalArgumentException("Invalid number of buckets: " + numBuckets);
+        }
+        return new long[(numBuckets + 15) >>> 4];
+    }
+
+    public void clear() {
+        Arrays.fill(counters, 0);
+    }
+
+    int buckets() {
+        return numBuckets;
+    }
+
+    long[] counters() {
+        return counters;
+    }
+
+    int count(int bucket) {
+        return (int) (counters[bucket >>> 4] >>> ((bucket & 15) << 2)) & 15;
+    }
+
+    private void increment(int bucket) {
+        int shift = (bucket & 15) << 2;
+        if (((counters[bucket >>> 4] >>> shift) & 15) != MAX_COUNT) {
+            counters[bucket >>> 4] += 1L << shift;
+        }
+    }
+
+    private void decrement(int bucket) {
+        int shift = (bucket & 15) << 2;
+        long count = (counters[bucket >>> 4] >>> shift) & 15;
+        if (count != 0 && count != MAX_COUNT) {
+            counters[bucket >>> 4] -= 1L << shift;
+        }
+    }
+
+    public boolean isPresent(String key) {
+        return isPresent(hash64(key));
+    }
+
+    public boolean isPresent(byte[] key) {
+        return isPresent(hash64(key));
+    }
+
+    private boolean isPresent(long hashes) {
+        for (int i = 0; i < hashCount; i++) {
+            if (count(bucket(hashes, i, numBuckets)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void add(String key) {
+        add(hash64(key));
+    }
+
+    public void add(byte[] key) {
+        add(hash64(key));
+    }
+
+    private void add(long hashes) {
+        for (int i = 0; i < hashCount; i++) {
+            increment(bucket(hashes, i, numBuckets));
+        }
+    }
+
+    /**
+     * Removes a key that was added before. Removing a key that was never
+     * added, but is a false positive, removes some other key instead.
+     *
+     * @return false if the key was not present, in which case nothing changes
+     */
+    public boolean remove(String key) {
+        return remove(hash64(key));
+    }
+
+    public boolean remove(byte[] key) {
+        return remove(hash64(key));
+    }
+
+    private boolean remove(long hashes) {
+        if (!isPresent(hashes)) {
+            return false;
+        }
+        for (int i = 0; i < hashCount; i++) {
+            decrement(bucket(hashes, i, numBuckets));
+        }
+        return true;
+    }
+
+    int emptyBuckets() {
+        int n = 0;
+        for (int i = 0; i < numBuckets; i++) {
+            if (count(i) == 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Adds the counters of the other filter to this one, saturating at 15.
+     */
+    public void addAll(CountingBloomFilter other) {
+        if (this.getHashCount() != other.getHashCount() || this.numBuckets != other.numBuckets) {
+            throw new IllegalArgumentException("Cannot merge filters of different sizes");
+        }
+        for (int i = 0; i < counters.length; i++) {
+            long a = counters[i];
+            long b = other.counters[i];
+            if (b == 0) {
+                continue;
+            }
+            long sum = 0;
+            for (int shift = 0; shift < 64; shift += 4) {
+                long count = Math.min(MAX_COUNT, ((a >>> shift) & 15) + ((b >>> shift) & 15));
+                sum |= count << shift;
+            }
+            counters[i] = sum;
+        }
+    }
+
+    public Filter merge(Filter... filters) {
+        CountingBloomFilter merged = new CountingBloomFilter(this.getHashCount(), numBuckets, counters.clone());
+
+        if (filters == null) {
+            return merged;
+        }
+
+        for (Filter filter : filters) {
+            if (!(filter instanceof CountingBloomFilter)) {
+                throw new IllegalArgumentException("Cannot merge filters of different class");
+            }
+            merged.addAll((CountingBloomFilter) filter);
+        }
+
+        return merged;
+    }
+
+    public String toString() {
+        return "CountingBloomFilter{" +
+                "hashCount=" + hashCount +
+                ", buckets=" + numBuckets +
+                '}';
+    }
+}
+
+class CountingBloomFilterSerializer implements ICompactSerializer<CountingBloomFilter> {
+
+    public void serialize(CountingBloomFilter bf, DataOutputStream dos) throws IOException {
+        dos.writeInt(bf.getHashCount());
+        dos.writeInt(bf.buckets());
+        for (long word : bf.counters()) {
+            dos.writeLong(word);
+        }
+    }
+
+    public CountingBloomFilter deserialize(DataInputStream dis) throws IOException {
+        int hashes = dis.readInt();
+        int numBuckets = dis.readInt();
+        CountingBloomFilter bf = new CountingBloomFilter(hashes, numBuckets, CountingBloomFilter.newCounters(numBuckets));
+        long[] counters = bf.counters();
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = dis.readLong();
+        }
+        return bf;
+    }
+}
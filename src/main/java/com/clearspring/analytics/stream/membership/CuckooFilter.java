@@ -0,0 +1,476 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+
+/**
+ * Cuckoo filter, after Fan et al., "Cuckoo Filter: Practically Better Than
+ * Bloom". Each key is stored as a small fingerprint in one of two candidate
+ * buckets of four slots, so keys can be removed again, and a lookup reads at
+ * most two buckets. A bucket is 4 * fingerprintBits <= 64 bits, packed
+ * end to end in a long[], so each bucket read touches at most two adjacent
+ * words.
+ * <p/>
+ * With f bit fingerprints the false positive rate is about 8 / 2^f at
+ * f / 0.95 bits per key, which is less space than a {@link BloomFilter} below
+ * a rate of about 0.3%. See {@link #computeFingerprintBits(double)} and
+ * {@link #bitsPerElement(int)}.
+ * <p/>
+ * Adding a key twice stores two fingerprints, which lets it be removed twice;
+ * at most eight copies of a key fit. Once a key can no longer be placed
+ * {@link #add(String)} throws IllegalStateException, but every key added so
+ * far remains present.
+ */
+public class CuckooFilter extends Filter {
+
+    static final int SLOTS_PER_BUCKET = 4;
+    // load reached reliably with four slots per bucket
+    static final double MAX_LOAD = 0.95;
+    static final int MIN_FINGERPRINT_BITS = 4;
+    static final int MAX_FINGERPRINT_BITS = 16;
+    private static final int MAX_KICKS = 500;
+
+    static ICompactSerializer<CuckooFilter> serializer_ = new CuckooFilterSerializer();
+
+    public static ICompactSerializer<CuckooFilter> serializer() {
+        return serializer_;
+    }
+
+    private final int fingerprintBits;
+    private final int fingerprintMask;
+    private final int bucketBits;
+    private final long bucketMask;
+    private final int numBuckets;
+    private final long[] table;
+
+    private int count;
+    // the fingerprint left over when an add ran out of kicks
+    private boolean hasVictim;
+    private int victimIndex;
+    private int victimFingerprint;
+    private long random = 0x9E3779B97F4A7C15L;
+
+    public CuckooFilter(int numElements, double maxFalsePosProbability) {
+        this(numElements, computeFingerprintBits(maxFalsePosProbability));
+    }
+
+    public CuckooFilter(int numElements, int fingerprintBits) {
+        this(fingerprintBits, computeNumBuckets(numElements),
+             newTable(fingerprintBits, computeNumBuckets(numElements)));
+    }
+
+    /*
+     * This version is only used by the deserializer and merge.
+     */
+    CuckooFilter(int fingerprintBits, int numBuckets, long[] table) {
+        if (fingerprintBits < MIN_FINGERPRINT_BITS || fingerprintBits > MAX_FINGERPRINT_BITS) {
+            throw new IllegalArgumentException("Fingerprint bits must be between " + MIN_FINGERPRINT_BITS +
+                                               " and " + MAX_FINGERPRINT_BITS + ": " + fingerprintBits);
+        }
+        if (numBuckets <= 0 || Integer.bitCount(numBuckets) != 1) {
+            throw new IllegalArgumentException("Number of buckets must be a power of two: " + numBuckets);
+        }
+        // two candidate buckets
+        hashCount = 2;
+        this.fingerprintBits = fingerprintBits;
+        this.fingerprintMask = (1 << fingerprintBits) - 1;
+        this.bucketBits = SLOTS_PER_BUCKET * fingerprintBits;
+        this.bucketMask = bucketBits == 64 ? -1L : (1L << bucketBits) - 1;
+        this.numBuckets = numBuckets;
+        this.table = table;
+    }
+
+    static long[] newTable(int fingerprintBits, int numBuckets) {
+        // one spare word so a bucket read never runs off the end
+        return new long[(int) (((long) numBuckets * SLOTS_PER_BUCKET * fingerprintBits + 63) >>> 6) + 1];
+    }
+
+    /**
+     * @return the smallest fingerprint size that keeps the false positive
+     * rate below the given one
+     */
+    public static int computeFingerprintBits(double maxFalsePosProbability) {
+        for (int f = MIN_FINGERPRINT_BITS; f <= MAX_FINGERPRINT_BITS; f++) {
+            if (getFalsePositiveProbability(f) <= maxFalsePosProbability) {
+                return f;
+            }
+        }
+        throw new UnsupportedOperationException("Cannot compute fingerprint size for false positive probability " +
+                                                maxFalsePosProbability);
+    }
+
+    /**
+     * @return the false positive rate of a full filter: a lookup compares
+     * against the eight fingerprints of two buckets
+     */
+    public static double getFalsePositiveProbability(int fingerprintBits) {
+        return 1 - Math.pow(1 - 1.0 / ((1 << fingerprintBits) - 1), 2 * SLOTS_PER_BUCKET);
+    }
+
+    /**
+     * @return the bits used per key at the maximum load, ignoring the rounding
+     * of the bucket count to a power of two
+     */
+    public static double bitsPerElement(int fingerprintBits) {
+        return fingerprintBits / MAX_LOAD;
+    }
+
+    static int computeNumBuckets(int numElements) {
+        long buckets = (long) Math.ceil(numElements / (SLOTS_PER_BUCKET * MAX_LOAD));
+        if (buckets > 1 << 30) {
+            throw new IllegalArgumentException("Too many elements: " + numElements);
+        }
+        return Integer.highestOneBit((int) Math.max(1, buckets - 1)) << 1;
+    }
+
+    public void clear() {
+        Arrays.fill(table, 0);
+        count = 0;
+        hasVictim = false;
+    }
+
+    /**
+     * @return the number of fingerprint slots
+     */
+    int buckets() {
+        return numBuckets * SLOTS_PER_BUCKET;
+    }
+
+    int emptyBuckets() {
+        return buckets() - count + (hasVictim ? 1 : 0);
+    }
+
+    int numBuckets() {
+        return numBuckets;
+    }
+
+    int fingerprintBits() {
+        return fingerprintBits;
+    }
+
+    long[] table() {
+        return table;
+    }
+
+    /**
+     * @return the number of fingerprints stored
+     */
+    public int size() {
+        return count;
+    }
+
+    public double getLoad() {
+        return count / (double) buckets();
+    }
+
+    private long readBucket(int bucket) {
+        long bitOffset = (long) bucket * bucketBits;
+        int word = (int) (bitOffset >>> 6);
+        int shift = (int) bitOffset & 63;
+        long bits = table[word] >>> shift;
+        if (shift + bucketBits > 64) {
+            bits |= table[word + 1] << (64 - shift);
+        }
+        return bits & bucketMask;
+    }
+
+    private void writeBucket(int bucket, long bits) {
+        long bitOffset = (long) bucket * bucketBits;
+        int word = (int) (bitOffset >>> 6);
+        int shift = (int) bitOffset & 63;
+        table[word] = (table[word] & ~(bucketMask << shift)) | (bits << shift);
+        if (shift + bucketBits > 64) {
+            int spill = 64 - shift;
+            table[word + 1] = (table[word + 1] & ~(bucketMask >>> spill)) | (bits >>> spill);
+        }
+    }
+
+    private boolean contains(int bucket, int fingerprint) {
+        long bits = readBucket(bucket);
+        for (int slot = 0; slot < SLOTS_PER_BUCKET; slot++) {
+            if (((bits >>> (slot * fingerprintBits)) & fingerprintMask) == fingerprint) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean insert(int bucket, int fingerprint) {
+        long bits = readBucket(bucket);
+        for (int slot = 0; slot < SLOTS_PER_BUCKET; slot++) {
+            int shift = slot * fingerprintBits;
+            if (((bits >>> shift) & fingerprintMask) == 0) {
+                writeBucket(bucket, bits | ((long) fingerprint << shift));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean delete(int bucket, int fingerprint) {
+        long bits = readBucket(bucket);
+        for (int slot = 0; slot < SLOTS_PER_BUCKET; slot++) {
+            int shift = slot * fingerprintBits;
+            if (((bits >>> shift) & fingerprintMask) == fingerprint) {
+                writeBucket(bucket, bits & ~((long) fingerprintMask << shift));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fingerprints are never zero, zero marks an empty slot.
+     */
+    private int fingerprint(long hash) {
+        int fingerprint = (int) (hash >>> (64 - fingerprintBits));
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private int index(long hash) {
+        return (int) hash & (numBuckets - 1);
+    }
+
+    /**
+     * The two candidate buckets of a fingerprint are each other's alternate,
+     * so a fingerprint can be moved without knowing its key.
+     */
+    private int altIndex(int bucket, int fingerprint) {
+        return (bucket ^ (fingerprint * 0x5bd1e995)) & (numBuckets - 1);
+    }
+
+    public boolean isPresent(String key) {
+        return isPresent(hash64(key));
+    }
+
+    public boolean isPresent(byte[] key) {
+        return isPresent(hash64(key));
+    }
+
+    private boolean isPresent(long hash) {
+        int fingerprint = fingerprint(hash);
+        int i1 = index(hash);
+        int i2 = altIndex(i1, fingerprint);
+        return contains(i1, fingerprint) || contains(i2, fingerprint) ||
+               (hasVictim && victimFingerprint == fingerprint && (victimIndex == i1 || victimIndex == i2));
+    }
+
+    /**
+     * @throws IllegalStateException if the filter is full
+     */
+    public void add(String key) {
+        add(hash64(key));
+    }
+
+    /**
+     * @throws IllegalStateException if the filter is full
+     */
+    public void add(byte[] key) {
+        add(hash64(key));
+    }
+
+    private void add(long hash) {
+        int fingerprint = fingerprint(hash);
+        add(index(hash), fingerprint);
+    }
+
+    private void add(int bucket, int fingerprint) {
+        if (hasVictim) {
+            throw new IllegalStateException("Cuckoo filter is full");
+        }
+        count++;
+        if (!place(bucket, fingerprint)) {
+            throw new IllegalStateException("Cuckoo filter is full");
+        }
+    }
+
+    /**
+     * @return false if the fingerprint or one it displaced had to be kept as
+     * the victim
+     */
+    private boolean place(int bucket, int fingerprint) {
+        if (insert(bucket, fingerprint)) {
+            return true;
+        }
+        int alt = altIndex(bucket, fingerprint);
+        if (insert(alt, fingerprint)) {
+            return true;
+        }
+        // evict a random resident and move it to its other bucket
+        int index = nextRandom(2) == 0 ? bucket : alt;
+        for (int kick = 0; kick < MAX_KICKS; kick++) {
+            long bits = readBucket(index);
+            int shift = nextRandom(SLOTS_PER_BUCKET) * fingerprintBits;
+            int evicted = (int) (bits >>> shift) & fingerprintMask;
+            writeBucket(index, (bits & ~((long) fingerprintMask << shift)) | ((long) fingerprint << shift));
+            fingerprint = evicted;
+            index = altIndex(index, fingerprint);
+            if (insert(index, fingerprint)) {
+                return true;
+            }
+        }
+        // keep the last evicted fingerprint so no key is lost
+        hasVictim = true;
+        victimIndex = index;
+        victimFingerprint = fingerprint;
+        return false;
+    }
+
+    private int nextRandom(int n) {
+        // xorshift, good enough to pick victims
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        return (int) ((random >>> 33) % n);
+    }
+
+    /**
+     * Removes a key that was added before. Removing a key that was never
+     * added, but is a false positive, removes some other key instead.
+     *
+     * @return false if the key was not present, in which case nothing changes
+     */
+    public boolean remove(String key) {
+        return remove(hash64(key));
+    }
+
+    public boolean remove(byte[] key) {
+        return remove(hash64(key));
+    }
+
+    private boolean remove(long hash) {
+        int fingerprint = fingerprint(hash);
+        int i1 = index(hash);
+        int i2 = altIndex(i1, fingerprint);
+        if (hasVictim && victimFingerprint == fingerprint && (victimIndex == i1 || victimIndex == i2)) {
+            hasVictim = false;
+            count--;
+            return true;
+        }
+        if (delete(i1, fingerprint) || delete(i2, fingerprint)) {
+            count--;
+            if (hasVictim) {
+                // there may be room for the victim now
+                hasVictim = false;
+                place(victimIndex, victimFingerprint);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the fingerprints of the other filter to this one.
+     *
+     * @throws IllegalStateException if this filter fills up
+     */
+    public void addAll(CuckooFilter other) {
+        if (this.fingerprintBits != other.fingerprintBits || this.numBuckets != other.numBuckets) {
+            throw new IllegalArgumentException("Cannot merge filters of different sizes");
+        }
+        for (int bucket = 0; bucket < other.numBuckets; bucket++) {
+            long bits = other.readBucket(bucket);
+            for (int slot = 0; slot < SLOTS_PER_BUCKET; slot++) {
+                int fingerprint = (int) (bits >>> (slot * fingerprintBits)) & fingerprintMask;
+                if (fingerprint != 0) {
+                    add(bucket, fingerprint);
+                }
+            }
+        }
+        if (other.hasVictim) {
+            add(other.victimIndex, other.victimFingerprint);
+        }
+    }
+
+    public Filter merge(Filter... filters) {
+        CuckooFilter merged = new CuckooFilter(fingerprintBits, numBuckets, newTable(fingerprintBits, numBuckets));
+        merged.addAll(this);
+
+        if (filters == null) {
+            return merged;
+        }
+
+        for (Filter filter : filters) {
+            if (!(filter instanceof CuckooFilter)) {
+                throw new IllegalArgumentException("Cannot merge filters of different class");
+            }
+            merged.addAll((CuckooFilter) filter);
+        }
+
+        return merged;
+    }
+
+    boolean hasVictim() {
+        return hasVictim;
+    }
+
+    int victimIndex() {
+        return victimIndex;
+    }
+
+    int victimFingerprint() {
+        return victimFingerprint;
+    }
+
+    void restore(int count, boolean hasVictim, int victimIndex, int victimFingerprint) {
+        this.count = count;
+        this.hasVictim = hasVictim;
+        this.victimIndex = victimIndex;
+        this.victimFingerprint = victimFingerprint;
+    }
+
+    public String toString() {
+        return "CuckooFilter{" +
+                "fingerprintBits=" + fingerprintBits +
+                ", buckets=" + numBuckets +
+                ", size=" + count +
+                '}';
+    }
+}
+
+class CuckooFilterSerializer implements ICompactSerializer<CuckooFilter> {
+
+    public void serialize(CuckooFilter cf, DataOutputStream dos) throws IOException {
+        dos.writeInt(cf.fingerprintBits());
+        dos.writeInt(cf.numBuckets());
+        dos.writeInt(cf.size());
+        dos.writeBoolean(cf.hasVictim());
+        dos.writeInt(cf.victimIndex());
+        dos.writeInt(cf.victimFingerprint());
+        for (long word : cf.table()) {
+            dos.writeLong(word);
+        }
+    }
+
+    public CuckooFilter deserialize(DataInputStream dis) throws IOException {
+        int fingerprintBits = dis.readInt();
+        int numBuckets = dis.readInt();
+        CuckooFilter cf = new CuckooFilter(fingerprintBits, numBuckets,
+                                           CuckooFilter.newTable(fingerprintBits, numBuckets));
+        int count = dis.readInt();
+        boolean hasVictim = dis.readBoolean();
+        cf.restore(count, hasVictim, dis.readInt(), dis.readInt());
+        long[] table = cf.table();
+        for (int i = 0; i < table.length; i++) {
+            table[i] = dis.readLong();
+        }
+        return cf;
+    }
+}
@@ -27,17 +27,65 @@ import com.clearspring.analytics.hash.MurmurHash;
 public abstract class Filter {
 
     int hashCount;
+    // set on filters read from encodings written before keys were hashed with
+    // hash64, which keep probing with legacyBucket
+    boolean legacyHashing;
 
     public int getHashCount() {
         return hashCount;
     }
 
     public int[] getHashBuckets(String key) {
-        return Filter.getHashBuckets(key, hashCount, buckets());
+        return getHashBuckets(hashes(key));
     }
 
     public int[] getHashBuckets(byte[] key) {
-        return Filter.getHashBuckets(key, hashCount, buckets());
+        return getHashBuckets(hashes(key));
+    }
+
+    private int[] getHashBuckets(long hashes) {
+        int[] result = new int[hashCount];
+        int max = buckets();
+        for (int i = 0; i < hashCount; i++) {
+            result[i] = probe(hashes, i, max);
+        }
+        return result;
+    }
+
+    /*
+     * The hashes of a key, for probe.
+     */
+    long hashes(CharSequence key) {
+        return legacyHashing ? legacyHashes(key) : hash64(key);
+    }
+
+    long hashes(byte[] key) {
+        return legacyHashing ? legacyHashes(key) : hash64(key);
+    }
+
+    /*
+     * The i-th bucket of the key with the given hashes, in the hashing this
+     * filter was created with.
+     */
+    int probe(long hashes, int i, int max) {
+        return legacyHashing ? legacyBucket(hashes, i, max) : bucket(hashes, i, max);
+    }
+
+    /*
+     * The hash count as the serializers write it. Filters that probe with
+     * bucket write its complement, so that encodings written before read
+     * back as legacy filters.
+     */
+    int serializedHashCount() {
+        return legacyHashing ? hashCount : ~hashCount;
+    }
+
+    static int hashCount(int serializedHashCount) {
+        return serializedHashCount < 0 ? ~serializedHashCount : serializedHashCount;
+    }
+
+    static boolean isLegacyHashing(int serializedHashCount) {
+        return serializedHashCount >= 0;
     }
 
 
@@ -66,14 +114,228 @@ public abstract class Filter {
     // https://gnunet.org/sites/default/files/LessHashing2006Kirsch.pdf
     // does prove to work in actual tests, and is obviously faster
     // than performing further iterations of murmur.
+    //
+    // These are the buckets of legacy filters. New filters use bucket.
     public static int[] getHashBuckets(String key, int hashCount, int max) {
-        byte[] b;
+        int[] result = new int[hashCount];
+        long hashes = legacyHashes(key);
+        for (int i = 0; i < hashCount; i++) {
+            result[i] = legacyBucket(hashes, i, max);
+        }
+        return result;
+    }
+
+    /**
+     * The two 32 bit murmur hashes {@link #getHashBuckets(String, int, int)}
+     * derives its buckets from, packed into a long, computed from the UTF-16
+     * encoding of the key without encoding it into a byte[]. Together with
+     * {@link #legacyBucket(long, int, int)} this gives the same buckets as
+     * getHashBuckets without allocating. Only for filters and sketches read
+     * from encodings written before {@link #bucket(long, int, int)} was
+     * used; new ones hash with {@link #hash64(CharSequence)}.
+     */
+    public static long legacyHashes(CharSequence key) {
+        int hash1 = utf16Hash(key, 0);
+        int hash2 = utf16Hash(key, hash1);
+        return ((long) hash1 << 32) | (hash2 & 0xFFFFFFFFL);
+    }
+
+    /*
+     * legacyHashes of a byte[] key, again only for reading old encodings.
+     */
+    static long legacyHashes(byte[] b) {
+        int hash1 = MurmurHash.hash(b, b.length, 0);
+        int hash2 = MurmurHash.hash(b, b.length, hash1);
+        return ((long) hash1 << 32) | (hash2 & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the i-th bucket of {@link #getHashBuckets(String, int, int)},
+     *         only for reading filters and sketches written with it
+     */
+    public static int legacyBucket(long hashes, int i, int max) {
+        int hash1 = (int) (hashes >>> 32);
+        int hash2 = (int) hashes;
+        return Math.abs((hash1 + i * hash2) % max);
+    }
+
+    /**
+     * The i-th bucket in [0, max) of a key with the given
+     * {@link #hash64(CharSequence) hash64}. The buckets of a key are
+     * hash64 + i * mix64(hash64), reduced to the range with a multiply high
+     * instead of a %, so neither allocation nor division is needed and any
+     * number of buckets can be probed.
+     */
+    public static int bucket(long hash64, int i, int max) {
+        return (int) reduce(hash64 + i * mix64(hash64), max);
+    }
+
+    /**
+     * {@link #bucket(long, int, int)} for filters with more than
+     * Integer.MAX_VALUE buckets.
+     */
+    public static long bucket(long hash64, int i, long max) {
+        return reduce(hash64 + i * mix64(hash64), max);
+    }
+
+    /**
+     * 64 bit murmur hash of the UTF-16 encoding of the key, equal to
+     * hashing {@code key.toString().getBytes("UTF-16")} but without
+     * allocating.
+     */
+    public static long hash64(CharSequence key) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+
+        // the encoding is a byte order mark followed by the big-endian chars
+        int units = key.length() == 0 ? 0 : key.length() + 1;
+        long h = (0xe17a1465 & 0xffffffffL) ^ (2 * units * m);
+
+        int j = -1;
+        for (int block = units >>> 2; block > 0; block--) {
+            long k = Long.reverseBytes(((long) utf16Unit(key, j) << 48) | ((long) utf16Unit(key, j + 1) << 32) |
+                                       ((long) utf16Unit(key, j + 2) << 16) | utf16Unit(key, j + 3));
+            j += 4;
+
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+
+            h ^= k;
+            h *= m;
+        }
+
+        int left = units & 3;
+        if (left > 0) {
+            long k = 0;
+            for (int shift = 0; shift < 16 * left; shift += 16, j++) {
+                int unit = utf16Unit(key, j);
+                k |= (long) (((unit & 0xFF) << 8) | (unit >>> 8)) << shift;
+            }
+            h ^= k;
+            h *= m;
+        }
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+
+        return h;
+    }
+
+    /**
+     * 64 bit murmur hash of a slice of a byte array.
+     */
+    public static long hash64(byte[] key, int offset, int length) {
+        return MurmurHash.hash64(key, offset, length, 0xe17a1465);
+    }
+
+    /**
+     * 64 bit murmur hash of a long key.
+     */
+    public static long hash64(long key) {
+        return MurmurHash.hashLong64(key);
+    }
+
+    /**
+     * The j-th char of the key as String.getBytes("UTF-16") encodes it: -1
+     * is the byte order mark and unpaired surrogates become U+FFFD.
+     */
+    private static int utf16Unit(CharSequence key, int j) {
+        if (j < 0) {
+            return 0xFEFF;
+        }
+        char c = key.charAt(j);
+        if (Character.isHighSurrogate(c)) {
+            if (j + 1 >= key.length() || !Character.isLowSurrogate(key.charAt(j + 1))) {
+                return 0xFFFD;
+            }
+        } else if (Character.isLowSurrogate(c)) {
+            if (j == 0 || !Character.isHighSurrogate(key.charAt(j - 1))) {
+                return 0xFFFD;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * {@link MurmurHash#hash(byte[], int, int)} of the UTF-16 encoding of the key.
+     */
+    private static int utf16Hash(CharSequence key, int seed) {
+        final int m = 0x5bd1e995;
+        final int r = 24;
+
+        int units = key.length() == 0 ? 0 : key.length() + 1;
+        int h = seed ^ (2 * units);
+
+        int j = -1;
+        for (int block = units >>> 1; block > 0; block--) {
+            int k = Integer.reverseBytes((utf16Unit(key, j) << 16) | utf16Unit(key, j + 1));
+            j += 2;
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h *= m;
+            h ^= k;
+        }
+
+        if ((units & 1) != 0) {
+            int unit = utf16Unit(key, j);
+            // the bytes are sign extended, as in MurmurHash
+            h ^= (int) (byte) (unit >>> 8) << 8;
+            h ^= (int) (byte) unit;
+            h *= m;
+        }
+
+        h ^= h >>> 13;
+        h *= m;
+        h ^= h >>> 15;
+
+        return h;
+    }
+
+    static byte[] getBytes(String key) {
         try {
-            b = key.getBytes("UTF-16");
+            return key.getBytes("UTF-16");
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
         }
-        return getHashBuckets(b, hashCount, max);
+    }
+
+    /**
+     * Single 64 bit hash of the key, for filters that derive all of their
+     * bucket positions from one hash.
+     */
+    static long hash64(byte[] b) {
+        return MurmurHash.hash64(b, b.length);
+    }
+
+    /**
+     * Murmur3 64 bit finalizer, used to derive a second independent looking
+     * hash from a 64 bit hash.
+     */
+    static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Maps a 64 bit hash uniformly onto [0, max) by taking the high 64 bits of
+     * the unsigned 128 bit product, which avoids both the bias and the cost of %.
+     */
+    static long reduce(long hash, long max) {
+        // unsigned multiply high, see Hacker's Delight 8-2
+        long h0 = hash & 0xFFFFFFFFL;
+        long h1 = hash >>> 32;
+        long m0 = max & 0xFFFFFFFFL;
+        long m1 = max >>> 32;
+        long t = h1 * m0 + ((h0 * m0) >>> 32);
+        long w1 = h0 * m1 + (t & 0xFFFFFFFFL);
+        return h1 * m1 + (t >>> 32) + (w1 >>> 32);
     }
 
     static int[] getHashBuckets(byte[] b, int hashCount, int max) {
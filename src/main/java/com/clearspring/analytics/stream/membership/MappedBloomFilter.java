@@ -0,0 +1,293 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.BitSet;
+
+/**
+ * Bloom filter whose buckets live in a memory-mapped file. Opening a filter
+ * maps the file without reading it, so it takes constant time and no heap, and
+ * processes mapping the same file share its pages through the page cache.
+ * Files over 1GB are mapped in several chunks.
+ * <p/>
+ * Keys are hashed with {@link Filter#bucket(long, int, long)} and buckets are
+ * laid out like {@link BitSet#toLongArray()}, so a filter answers exactly like
+ * a {@link BloomFilter} of the same size and one can be copied into a file
+ * with {@link #create(File, BloomFilter)}. A copy of a legacy BloomFilter
+ * keeps probing with {@link Filter#getHashBuckets(String, int, int)}.
+ * {@link BloomCalculations} sizing applies.
+ * <p/>
+ * Like {@link BloomFilter}, adds are not thread safe.
+ */
+public class MappedBloomFilter extends Filter implements Closeable {
+
+    // "BLMF" followed by the format version
+    private static final int MAGIC = 0x424c4d46;
+    private static final int VERSION = 1;
+    // keeps the buckets aligned to a cache line
+    private static final int HEADER_BYTES = 64;
+    private static final int CHUNK_SHIFT = 30;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private final File file;
+    private final long numBuckets;
+    private final MappedByteBuffer[] chunks;
+
+    private MappedBloomFilter(File file, int hashes, boolean legacyHashing, long numBuckets,
+                              MappedByteBuffer[] chunks) {
+        hashCount = hashes;
+        this.legacyHashing = legacyHashing;
+        this.file = file;
+        this.numBuckets = numBuckets;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Creates an empty filter in the given file, replacing its content.
+     */
+    public static MappedBloomFilter create(File file, long numElements, double maxFalsePosProbability)
+            throws IOException {
+        BloomCalculations.BloomSpecification spec = BloomCalculations.computeBucketsAndK(maxFalsePosProbability);
+        return createWithBuckets(file, spec.K, numElements * spec.bucketsPerElement + 20);
+    }
+
+    /**
+     * Creates an empty filter in the given file, replacing its content.
+     */
+    public static MappedBloomFilter create(File file, long numElements, int bucketsPerElement) throws IOException {
+        return createWithBuckets(file, BloomCalculations.computeBestK(bucketsPerElement), numElements * bucketsPerElement + 20);
+    }
+
+    /**
+     * Copies a filter into the given file, replacing its content.
+     */
+    public static MappedBloomFilter create(File file, BloomFilter source) throws IOException {
+        MappedBloomFilter filter = createWithBuckets(file, source.getHashCount(), source.legacyHashing, source.buckets());
+        long[] words = source.filter().toLongArray();
+        for (int i = 0; i < words.length; i++) {
+            for (int j = 0; j < 8; j++) {
+                long offset = i * 8L + j;
+                filter.chunks[(int) (offset >>> CHUNK_SHIFT)].put((int) offset & CHUNK_MASK, (byte) (words[i] >>> (8 * j)));
+            }
+        }
+        return filter;
+    }
+
+    static MappedBloomFilter createWithBuckets(File file, int hashes, long numBuckets) throws IOException {
+        return createWithBuckets(file, hashes, false, numBuckets);
+    }
+
+    private static MappedBloomFilter createWithBuckets(File file, int hashes, boolean legacyHashing, long numBuckets)
+            throws IOException {
+        if (numBuckets <= 0) {
+            throw new IllegalArgumentException("Invalid number of buckets: " + numBuckets);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(HEADER_BYTES + dataBytes(numBuckets));
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            // the hash count is complemented like in the BloomFilter encoding, negative unless legacy
+            raf.writeInt(legacyHashing ? hashes : ~hashes);
+            raf.writeLong(numBuckets);
+            return new MappedBloomFilter(file, hashes, legacyHashing, numBuckets,
+                                         map(raf.getChannel(), numBuckets, false));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Maps an existing filter file.
+     *
+     * @param readOnly if true the filter cannot be added to
+     */
+    public static MappedBloomFilter open(File file, boolean readOnly) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        try {
+            if (raf.length() < HEADER_BYTES || raf.readInt() != MAGIC) {
+                throw new IOException("Not a MappedBloomFilter file: " + file);
+            }
+            int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unknown MappedBloomFilter version " + version + ": " + file);
+            }
+            int hashes = raf.readInt();
+            long numBuckets = raf.readLong();
+            if (numBuckets <= 0 || raf.length() < HEADER_BYTES + dataBytes(numBuckets)) {
+                throw new IOException("Truncated MappedBloomFilter file: " + file);
+            }
+            boolean legacyHashing = isLegacyHashing(hashes);
+            if (legacyHashing && numBuckets > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt MappedBloomFilter file: " + file);
+            }
+            return new MappedBloomFilter(file, hashCount(hashes), legacyHashing, numBuckets,
+                                         map(raf.getChannel(), numBuckets, readOnly));
+        } finally {
+            // the mappings stay valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    private static long dataBytes(long numBuckets) {
+        // whole words, like BitSet
+        return ((numBuckets + 63) >>> 6) * 8;
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, long numBuckets, boolean readOnly) throws IOException {
+        long bytes = dataBytes(numBuckets);
+        int numChunks = (int) ((bytes + CHUNK_MASK) >>> CHUNK_SHIFT);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[numChunks];
+        FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+        for (int i = 0; i < numChunks; i++) {
+            long position = (long) i << CHUNK_SHIFT;
+            chunks[i] = channel.map(mode, HEADER_BYTES + position, Math.min(bytes - position, 1L << CHUNK_SHIFT));
+        }
+        return chunks;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of buckets, or Integer.MAX_VALUE if it does not fit in an int
+     */
+    int buckets() {
+        return (int) Math.min(Integer.MAX_VALUE, numBuckets);
+    }
+
+    public long bucketCount() {
+        return numBuckets;
+    }
+
+    public boolean isPresent(String key) {
+        return legacyHashing ? isPresentLegacy(legacyHashes(key)) : isPresent(hash64(key));
+    }
+
+    public boolean isPresent(byte[] key) {
+        return legacyHashing ? isPresentLegacy(legacyHashes(key)) : isPresent(hash64(key));
+    }
+
+    public void add(String key) {
+        if (legacyHashing) {
+            addLegacy(legacyHashes(key));
+        } else {
+            add(hash64(key));
+        }
+    }
+
+    public void add(byte[] key) {
+        if (legacyHashing) {
+            addLegacy(legacyHashes(key));
+        } else {
+            add(hash64(key));
+        }
+    }
+
+    /*
+     * The buckets of Filter.getHashBuckets, for copies of legacy filters,
+     * which always fit in an int.
+     */
+    private void addLegacy(long hashes) {
+        for (int i = 0; i < hashCount; i++) {
+            set(legacyBucket(hashes, i, (int) numBuckets));
+        }
+    }
+
+    private boolean isPresentLegacy(long hashes) {
+        for (int i = 0; i < hashCount; i++) {
+            if (!get(legacyBucket(hashes, i, (int) numBuckets))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(long hash) {
+        for (int i = 0; i < hashCount; i++) {
+            set(bucket(hash, i, numBuckets));
+        }
+    }
+
+    private boolean isPresent(long hash) {
+        for (int i = 0; i < hashCount; i++) {
+            if (!get(bucket(hash, i, numBuckets))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean get(long bucket) {
+        long offset = bucket >>> 3;
+        return (chunks[(int) (offset >>> CHUNK_SHIFT)].get((int) offset & CHUNK_MASK) & (1 << (bucket & 7))) != 0;
+    }
+
+    private void set(long bucket) {
+        long offset = bucket >>> 3;
+        ByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+        int index = (int) offset & CHUNK_MASK;
+        chunk.put(index, (byte) (chunk.get(index) | (1 << (bucket & 7))));
+    }
+
+    int emptyBuckets() {
+        long n = 0;
+        for (long bucket = 0; bucket < numBuckets; bucket++) {
+            if (!get(bucket)) {
+                n++;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, n);
+    }
+
+    /**
+     * Writes the buckets back to the file.
+     */
+    public void flush() {
+        for (MappedByteBuffer chunk : chunks) {
+            if (!chunk.isReadOnly()) {
+                chunk.force();
+            }
+        }
+    }
+
+    /**
+     * Flushes the filter. The mapping itself is released once the filter is
+     * garbage collected.
+     */
+    @Override
+    public void close() {
+        flush();
+    }
+
+    public String toString() {
+        return "MappedBloomFilter{" +
+                "file=" + file +
+                ", hashCount=" + hashCount +
+                ", buckets=" + numBuckets +
+                '}';
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Bloom filter that grows with the number of keys instead of being sized up
+ * front, after Almeida et al., "Scalable Bloom Filters". Keys go into a chain
+ * of {@link BloomFilter} stages. When the newest stage has taken its capacity
+ * of distinct keys a new stage is started with growthFactor times the capacity
+ * and tighteningRatio times the false positive rate, so the rates form a
+ * geometric series and the overall rate stays below maxFalsePosProbability no
+ * matter how many stages are added. Memory grows in proportion to the keys
+ * actually added.
+ * <p/>
+ * Keys that are already present are not added again, so repeated keys do not
+ * use up capacity.
+ */
+public class ScalableBloomFilter extends Filter {
+
+    public static final int DEFAULT_GROWTH_FACTOR = 2;
+    public static final double DEFAULT_TIGHTENING_RATIO = 0.5;
+
+    static ICompactSerializer<ScalableBloomFilter> serializer_ = new ScalableBloomFilterSerializer();
+
+    public static ICompactSerializer<ScalableBloomFilter> serializer() {
+        return serializer_;
+    }
+
+    private final int initialCapacity;
+    private final double maxFalsePosProbability;
+    private final int growthFactor;
+    private final double tighteningRatio;
+    private final List<BloomFilter> stages;
+    // distinct keys added to the newest stage, and how many it holds
+    private int count;
+    private int stageCapacity;
+
+    public ScalableBloomFilter(int initialCapacity, double maxFalsePosProbability) {
+        this(initialCapacity, maxFalsePosProbability, DEFAULT_GROWTH_FACTOR, DEFAULT_TIGHTENING_RATIO);
+    }
+
+    /**
+     * @param initialCapacity        distinct keys the first stage holds
+     * @param maxFalsePosProbability bound on the false positive rate of the whole filter
+     * @param growthFactor           capacity of each stage relative to the one before
+     * @param tighteningRatio        false positive rate of each stage relative to the one before
+     */
+    public ScalableBloomFilter(int initialCapacity, double maxFalsePosProbability, int growthFactor,
+                               double tighteningRatio) {
+        this(initialCapacity, maxFalsePosProbability, growthFactor, tighteningRatio, new ArrayList<BloomFilter>(), 0);
+        stages.add(newStage(0));
+    }
+
+    /*
+     * This version is only used by the deserializer and merge.
+     */
+    ScalableBloomFilter(int initialCapacity, double maxFalsePosProbability, int growthFactor,
+                        double tighteningRatio, List<BloomFilter> stages, int count) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("Initial capacity must be positive: " + initialCapacity);
+        }
+        if (maxFalsePosProbability <= 0 || maxFalsePosProbability >= 1) {
+            throw new IllegalArgumentException("False positive probability must be in (0, 1): " + maxFalsePosProbability);
+        }
+        if (growthFactor < 1) {
+            throw new IllegalArgumentException("Growth factor must be at least 1: " + growthFactor);
+        }
+        if (tighteningRatio <= 0 || tighteningRatio >= 1) {
+            throw new IllegalArgumentException("Tightening ratio must be in (0, 1): " + tighteningRatio);
+        }
+        this.initialCapacity = initialCapacity;
+        this.maxFalsePosProbability = maxFalsePosProbability;
+        this.growthFactor = growthFactor;
+        this.tighteningRatio = tighteningRatio;
+        this.stages = stages;
+        this.count = count;
+        if (!stages.isEmpty()) {
+            stageCapacity = capacity(stages.size() - 1);
+        }
+    }
+
+    /**
+     * Distinct keys the given stage holds before the next one is started.
+     * Capacity stops growing once a stage would outgrow a BitSet.
+     */
+    int capacity(int stage) {
+        return capacity(stage, stageSpec(stage).bucketsPerElement);
+    }
+
+    private int capacity(int stage, int bucketsPerElement) {
+        long capacity = initialCapacity;
+        for (int i = 0; i < stage && capacity * bucketsPerElement < Integer.MAX_VALUE; i++) {
+            capacity *= growthFactor;
+        }
+        return (int) Math.min(capacity, (Integer.MAX_VALUE - 64) / bucketsPerElement);
+    }
+
+    /**
+     * The stage rates are maxFalsePosProbability * (1 - r) * r^stage, which
+     * sum to maxFalsePosProbability.
+     */
+    double stageFalsePosProbability(int stage) {
+        return maxFalsePosProbability * (1 - tighteningRatio) * Math.pow(tighteningRatio, stage);
+    }
+
+    BloomCalculations.BloomSpecification stageSpec(int stage) {
+        double p = stageFalsePosProbability(stage);
+        BloomCalculations.BloomSpecification spec = BloomCalculations.computeBucketsAndK(p);
+        if (BloomCalculations.probs[spec.bucketsPerElement][spec.K] <= p) {
+            return spec;
+        }
+        // past the end of the precomputed table, use the closed form with optimal K
+        int bucketsPerElement = spec.bucketsPerElement;
+        int k;
+        do {
+            bucketsPerElement++;
+            k = Math.max(1, (int) Math.round(bucketsPerElement * Math.log(2)));
+        }
+        while (BloomCalculations.getFalsePositiveProbability(bucketsPerElement, k) > p);
+        return new BloomCalculations.BloomSpecification(k, bucketsPerElement);
+    }
+
+    /*
+     * Creates the given stage and keeps its capacity, so that adding a key
+     * does not size the stage again.
+     */
+    private BloomFilter newStage(int stage) {
+        BloomCalculations.BloomSpecification spec = stageSpec(stage);
+        stageCapacity = capacity(stage, spec.bucketsPerElement);
+        return new BloomFilter(spec.K, new BitSet(stageCapacity * spec.bucketsPerElement + 20));
+    }
+
+    public void clear() {
+        BloomFilter first = stages.get(0);
+        first.clear();
+        stages.clear();
+        stages.add(first);
+        count = 0;
+        stageCapacity = capacity(0);
+    }
+
+    int stageCount() {
+        return stages.size();
+    }
+
+    List<BloomFilter> stages() {
+        return stages;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int buckets() {
+        long buckets = 0;
+        for (BloomFilter stage : stages) {
+            buckets += stage.buckets();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, buckets);
+    }
+
+    int emptyBuckets() {
+        long n = 0;
+        for (BloomFilter stage : stages) {
+            n += stage.emptyBuckets();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, n);
+    }
+
+    // Every stage derives its buckets from the same hash64 of the key, so a
+    // key is hashed once and the hash is handed to each stage.
+
+    public boolean isPresent(String key) {
+        return isPresent(hash64(key));
+    }
+
+    public boolean isPresent(byte[] key) {
+        return isPresent(hash64(key));
+    }
+
+    private boolean isPresent(long hashes) {
+        for (int i = 0; i < stages.size(); i++) {
+            if (stages.get(i).isPresent(hashes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void add(String key) {
+        add(hash64(key));
+    }
+
+    public void add(byte[] key) {
+        add(hash64(key));
+    }
+
+    private void add(long hashes) {
+        if (!isPresent(hashes)) {
+            currentStage().add(hashes);
+            count++;
+        }
+    }
+
+    private BloomFilter currentStage() {
+        if (count >= stageCapacity) {
+            stages.add(newStage(stages.size()));
+            count = 0;
+        }
+        return stages.get(stages.size() - 1);
+    }
+
+    /**
+     * @return the false positive rate the stages started so far are sized for
+     */
+    public double getFalsePositiveProbability() {
+        double trueNegative = 1;
+        for (int i = 0; i < stages.size(); i++) {
+            BloomCalculations.BloomSpecification spec = stageSpec(i);
+            trueNegative *= 1 - BloomCalculations.getFalsePositiveProbability(spec.bucketsPerElement, spec.K);
+        }
+        return 1 - trueNegative;
+    }
+
+    /**
+     * Merges filters built with the same parameters by merging their stages
+     * pairwise. The keys of a stage are not known, so a merged stage can end
+     * up holding more keys than its capacity, and then has a higher false
+     * positive rate than it was sized for.
+     */
+    public Filter merge(Filter... filters) {
+        List<BloomFilter> mergedStages = new ArrayList<BloomFilter>();
+        for (BloomFilter stage : stages) {
+            mergedStages.add((BloomFilter) stage.merge());
+        }
+        List<ScalableBloomFilter> inputs = new ArrayList<ScalableBloomFilter>();
+        inputs.add(this);
+
+        if (filters != null) {
+            for (Filter filter : filters) {
+                if (!(filter instanceof ScalableBloomFilter)) {
+                    throw new IllegalArgumentException("Cannot merge filters of different class");
+                }
+                ScalableBloomFilter other = (ScalableBloomFilter) filter;
+                if (other.initialCapacity != initialCapacity ||
+                    other.maxFalsePosProbability != maxFalsePosProbability ||
+                    other.growthFactor != growthFactor ||
+                    other.tighteningRatio != tighteningRatio) {
+                    throw new IllegalArgumentException("Cannot merge filters of different sizes");
+                }
+                for (int i = 0; i < other.stages.size(); i++) {
+                    if (i < mergedStages.size()) {
+                        mergedStages.get(i).addAll(other.stages.get(i));
+                    } else {
+                        mergedStages.add((BloomFilter) other.stages.get(i).merge());
+                    }
+                }
+                inputs.add(other);
+            }
+        }
+
+        // the newest stage holds the keys of every input that got that far
+        int mergedCount = 0;
+        for (ScalableBloomFilter input : inputs) {
+            if (input.stages.size() == mergedStages.size()) {
+                mergedCount += input.count;
+            }
+        }
+
+        return new ScalableBloomFilter(initialCapacity, maxFalsePosProbability, growthFactor, tighteningRatio,
+                                       mergedStages, mergedCount);
+    }
+
+    public String toString() {
+        return "ScalableBloomFilter{" +
+                "stages=" + stages.size() +
+                ", buckets=" + buckets() +
+                ", maxFalsePosProbability=" + maxFalsePosProbability +
+                '}';
+    }
+
+    int initialCapacity() {
+        return initialCapacity;
+    }
+
+    double maxFalsePosProbability() {
+        return maxFalsePosProbability;
+    }
+
+    int growthFactor() {
+        return growthFactor;
+    }
+
+    double tighteningRatio() {
+        return tighteningRatio;
+    }
+}
+
+class ScalableBloomFilterSerializer implements ICompactSerializer<ScalableBloomFilter> {
+
+    public void serialize(ScalableBloomFilter bf, DataOutputStream dos) throws IOException {
+        dos.writeInt(bf.initialCapacity());
+        dos.writeDouble(bf.maxFalsePosProbability());
+        dos.writeInt(bf.growthFactor());
+        dos.writeDouble(bf.tighteningRatio());
+        dos.writeInt(bf.count());
+        dos.writeInt(bf.stageCount());
+        for (BloomFilter stage : bf.stages()) {
+            BloomFilter.serializer().serialize(stage, dos);
+        }
+    }
+
+    public ScalableBloomFilter deserialize(DataInputStream dis) throws IOException {
+        int initialCapacity = dis.readInt();
+        double maxFalsePosProbability = dis.readDouble();
+        int growthFactor = dis.readInt();
+        double tighteningRatio = dis.readDouble();
+        int count = dis.readInt();
+        int numStages = dis.readInt();
+        List<BloomFilter> stages = new ArrayList<BloomFilter>(numStages);
+        for (int i = 0; i < numStages; i++) {
+            stages.add(BloomFilter.serializer().deserialize(dis));
+        }
+        return new ScalableBloomFilter(initialCapacity, maxFalsePosProbability, growthFactor, tighteningRatio,
+                                       stages, count);
+    }
+}
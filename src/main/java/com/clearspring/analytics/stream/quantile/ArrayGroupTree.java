@@ -0,0 +1,596 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.quantile;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.clearspring.analytics.util.Preconditions;
+
+/**
+ * The same ordered set of centroids as {@link GroupTree}, but kept in
+ * parallel primitive arrays instead of a tree of objects. Each node is an
+ * index into the arrays holding its mean, count, id, children, parent and the
+ * size and count sum of its subtree, so a centroid costs a few dozen bytes
+ * with no headers or pointers to chase. The parent links let a walk step to
+ * the next node in constant amortized time. Slots of removed nodes go on a
+ * free list threaded through the left child array and are reused by later
+ * adds.
+ * <p/>
+ * The Group methods mirror those of GroupTree. Groups they return are
+ * copies, so changing one does not change the tree. TDigest uses the node
+ * index methods instead, which allocate nothing. A node index stays valid
+ * until that node is removed.
+ */
+public class ArrayGroupTree implements Iterable<TDigest.Group> {
+
+    // index 0 is an empty sentinel with zero depth, size and sum
+    static final int NIL = 0;
+
+    private double[] mean;
+    private int[] count;
+    private int[] id;
+    private int[] left;
+    private int[] right;
+    // only valid for nodes in the tree, NIL for the root
+    private int[] parent;
+    private byte[] depth;
+    private int[] size;
+    private int[] sum;
+    // recorded data of each centroid, only allocated once some is added
+    private Object[] data;
+
+    private int root = NIL;
+    private int free = NIL;
+    // the first slot that has never been used
+    private int top = 1;
+
+    public ArrayGroupTree() {
+        this(16);
+    }
+
+    public ArrayGroupTree(int capacity) {
+        capacity = Math.max(capacity, 1) + 1;
+        mean = new double[capacity];
+        count = new int[capacity];
+        id = new int[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        parent = new int[capacity];
+        depth = new byte[capacity];
+        size = new int[capacity];
+        sum = new int[capacity];
+    }
+
+    public int size() {
+        return size[root];
+    }
+
+    public int sum() {
+        return sum[root];
+    }
+
+    @SuppressWarnings("unchecked")
+    public void add(TDigest.Group group) {
+        add(group.mean(), group.count(), group.id(), (List<Double>) group.data());
+    }
+
+    public void remove(TDigest.Group base) {
+        Preconditions.checkState(root != NIL, "Cannot remove from empty set");
+        int node = find(base.mean(), base.id());
+        Preconditions.checkArgument(node != NIL, "Element %s not found", base);
+        remove(node);
+    }
+
+    /**
+     * @return the number of items strictly before the current element
+     */
+    public int headCount(TDigest.Group base) {
+        return headCount(base.mean(), base.id());
+    }
+
+    /**
+     * @return the sum of the size() function for all elements strictly before the current element.
+     */
+    public int headSum(TDigest.Group base) {
+        return headSum(base.mean(), base.id());
+    }
+
+    /**
+     * @return the first Group in this set
+     */
+    public TDigest.Group first() {
+        Preconditions.checkState(root != NIL, "No first element of empty set");
+        return group(first(root));
+    }
+
+    public TDigest.Group last() {
+        Preconditions.checkState(root != NIL, "Cannot find last element of empty set");
+        int node = root;
+        while (right[node] != NIL) {
+            node = right[node];
+        }
+        return group(node);
+    }
+
+    /**
+     * @return the largest element less than or equal to base
+     */
+    public TDigest.Group floor(TDigest.Group base) {
+        return group(floor(base.mean(), base.id()));
+    }
+
+    /**
+     * @return the smallest element greater than or equal to base.
+     */
+    public TDigest.Group ceiling(TDigest.Group base) {
+        return group(ceiling(base.mean(), base.id()));
+    }
+
+    /**
+     * @return the subset of elements equal to or greater than base.
+     */
+    public Iterable<TDigest.Group> tailSet(final TDigest.Group start) {
+        return new Iterable<TDigest.Group>() {
+            @Override
+            public Iterator<TDigest.Group> iterator() {
+                return ArrayGroupTree.this.iterator(ceiling(start.mean(), start.id()));
+            }
+        };
+    }
+
+    /**
+     * Iterates through all groups in the tree in ascending order of means.
+     */
+    public Iterator<TDigest.Group> iterator() {
+        return iterator(first(root));
+    }
+
+    private Iterator<TDigest.Group> iterator(final int start) {
+        return new Iterator<TDigest.Group>() {
+            int node = start;
+
+            @Override
+            public boolean hasNext() {
+                return node != NIL;
+            }
+
+            @Override
+            public TDigest.Group next() {
+                if (node == NIL) {
+                    throw new NoSuchElementException();
+                }
+                TDigest.Group r = group(node);
+                node = ArrayGroupTree.this.next(node);
+                return r;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public void checkBalance() {
+        Preconditions.checkState(root == NIL || parent[root] == NIL, "Root has a parent");
+        checkBalance(root);
+    }
+
+    private void checkBalance(int node) {
+        if (node != NIL) {
+            int l = depth[left[node]];
+            int r = depth[right[node]];
+            Preconditions.checkState(Math.abs(l - r) < 2, "Imbalanced");
+            Preconditions.checkState(depth[node] == Math.max(l, r) + 1, "Depth doesn't match children");
+            Preconditions.checkState(size[node] == size[left[node]] + size[right[node]] + 1, "Sizes don't match children");
+            Preconditions.checkState(sum[node] == sum[left[node]] + sum[right[node]] + count[node], "Counts don't match children");
+            Preconditions.checkState(left[node] == NIL || compare(mean[left[node]], id[left[node]], node) < 0, "Left child is out of order");
+            Preconditions.checkState(right[node] == NIL || compare(mean[right[node]], id[right[node]], node) > 0, "Right child is out of order");
+            Preconditions.checkState(left[node] == NIL || parent[left[node]] == node, "Left child has wrong parent");
+            Preconditions.checkState(right[node] == NIL || parent[right[node]] == node, "Right child has wrong parent");
+            checkBalance(left[node]);
+            checkBalance(right[node]);
+        }
+    }
+
+    private TDigest.Group group(int node) {
+        if (node == NIL) {
+            return null;
+        }
+        return new TDigest.Group(mean[node], count[node], id[node], data(node));
+    }
+
+    // the node index API used by TDigest
+
+    double mean(int node) {
+        return mean[node];
+    }
+
+    int count(int node) {
+        return count[node];
+    }
+
+    @SuppressWarnings("unchecked")
+    List<Double> data(int node) {
+        return data == null ? null : (List<Double>) data[node];
+    }
+
+    /**
+     * Adds a centroid unless one with the same mean and id is already present.
+     */
+    void add(double m, int c, int i, List<Double> d) {
+        if (d != null && data == null) {
+            data = new Object[mean.length];
+        }
+        root = insert(root, m, c, i, d);
+        parent[root] = NIL;
+    }
+
+    void remove(int node) {
+        root = delete(root, mean[node], id[node]);
+        parent[root] = NIL;
+    }
+
+    /**
+     * Changes the mean and count of a node. The node is moved if its new
+     * mean takes it past a neighbor, and keeps its index either way.
+     */
+    void update(int node, double m, int c) {
+        int previous = previous(node);
+        int next = next(node);
+        if ((previous == NIL || compare(m, id[node], previous) > 0) && (next == NIL || compare(m, id[node], next) < 0)) {
+            // the order is unchanged, so only the sums on the way down need fixing
+            int delta = c - count[node];
+            int n = root;
+            while (n != node) {
+                sum[n] += delta;
+                n = compare(mean[node], id[node], n) < 0 ? left[n] : right[n];
+            }
+            sum[node] += delta;
+            mean[node] = m;
+            count[node] = c;
+        } else {
+            root = unlink(root, mean[node], id[node]);
+            mean[node] = m;
+            count[node] = c;
+            left[node] = right[node] = NIL;
+            root = attach(root, node);
+            parent[root] = NIL;
+        }
+    }
+
+    /**
+     * @return the node with the largest key less than or equal to the given one, or NIL
+     */
+    int floor(double m, int i) {
+        int best = NIL;
+        int node = root;
+        while (node != NIL) {
+            int r = compare(m, i, node);
+            if (r == 0) {
+                return node;
+            } else if (r > 0) {
+                best = node;
+                node = right[node];
+            } else {
+                node = left[node];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the node with the smallest key greater than or equal to the given one, or NIL
+     */
+    int ceiling(double m, int i) {
+        int best = NIL;
+        int node = root;
+        while (node != NIL) {
+            int r = compare(m, i, node);
+            if (r == 0) {
+                return node;
+            } else if (r < 0) {
+                best = node;
+                node = left[node];
+            } else {
+                node = right[node];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the node after the given one, or NIL
+     */
+    int next(int node) {
+        if (right[node] != NIL) {
+            return first(right[node]);
+        }
+        // climb until we come up from a left child
+        int p = parent[node];
+        while (p != NIL && right[p] == node) {
+            node = p;
+            p = parent[p];
+        }
+        return p;
+    }
+
+    private int previous(int node) {
+        if (left[node] != NIL) {
+            int n = left[node];
+            while (right[n] != NIL) {
+                n = right[n];
+            }
+            return n;
+        }
+        int p = parent[node];
+        while (p != NIL && left[p] == node) {
+            node = p;
+            p = parent[p];
+        }
+        return p;
+    }
+
+    int firstNode() {
+        return first(root);
+    }
+
+    private int first(int node) {
+        if (node != NIL) {
+            while (left[node] != NIL) {
+                node = left[node];
+            }
+        }
+        return node;
+    }
+
+    int headCount(int node) {
+        return headCount(mean[node], id[node]);
+    }
+
+    int headSum(int node) {
+        return headSum(mean[node], id[node]);
+    }
+
+    private int headCount(double m, int i) {
+        int r = 0;
+        int node = root;
+        while (node != NIL) {
+            int order = compare(m, i, node);
+            if (order > 0) {
+                r += size[left[node]] + 1;
+                node = right[node];
+            } else {
+                if (order == 0) {
+                    return r + size[left[node]];
+                }
+                node = left[node];
+            }
+        }
+        return r;
+    }
+
+    private int headSum(double m, int i) {
+        int r = 0;
+        int node = root;
+        while (node != NIL) {
+            int order = compare(m, i, node);
+            if (order > 0) {
+                r += sum[left[node]] + count[node];
+                node = right[node];
+            } else {
+                if (order == 0) {
+                    return r + sum[left[node]];
+                }
+                node = left[node];
+            }
+        }
+        return r;
+    }
+
+    private int find(double m, int i) {
+        int node = root;
+        while (node != NIL) {
+            int r = compare(m, i, node);
+            if (r == 0) {
+                return node;
+            }
+            node = r < 0 ? left[node] : right[node];
+        }
+        return NIL;
+    }
+
+    private int compare(double m, int i, int node) {
+        int r = Double.compare(m, mean[node]);
+        if (r == 0) {
+            r = i - id[node];
+        }
+        return r;
+    }
+
+    private int insert(int node, double m, int c, int i, List<Double> d) {
+        if (node == NIL) {
+            int r = allocate();
+            mean[r] = m;
+            count[r] = c;
+            id[r] = i;
+            if (data != null) {
+                data[r] = d;
+            }
+            return fix(r);
+        }
+        // the arrays may be replaced while inserting below, so store the child afterwards
+        int order = compare(m, i, node);
+        if (order < 0) {
+            int child = insert(left[node], m, c, i, d);
+            left[node] = child;
+        } else if (order > 0) {
+            int child = insert(right[node], m, c, i, d);
+            right[node] = child;
+        } else {
+            return node;
+        }
+        return balance(node);
+    }
+
+    /*
+     * Puts an unlinked node back in the tree.
+     */
+    private int attach(int node, int detached) {
+        if (node == NIL) {
+            return fix(detached);
+        }
+        if (compare(mean[detached], id[detached], node) < 0) {
+            left[node] = attach(left[node], detached);
+        } else {
+            right[node] = attach(right[node], detached);
+        }
+        return balance(node);
+    }
+
+    private int delete(int node, double m, int i) {
+        int target = find(m, i);
+        if (target == NIL) {
+            return node;
+        }
+        node = unlink(node, m, i);
+        release(target);
+        return node;
+    }
+
+    /*
+     * Takes the node with the given key out of the subtree without releasing
+     * its slot. A node with two children is replaced by its successor node
+     * rather than by a copy of it, which keeps the indices of the other nodes
+     * valid.
+     */
+    private int unlink(int node, double m, int i) {
+        if (node == NIL) {
+            return NIL;
+        }
+        int order = compare(m, i, node);
+        if (order < 0) {
+            left[node] = unlink(left[node], m, i);
+        } else if (order > 0) {
+            right[node] = unlink(right[node], m, i);
+        } else if (left[node] == NIL || right[node] == NIL) {
+            return left[node] != NIL ? left[node] : right[node];
+        } else {
+            int successor = first(right[node]);
+            right[successor] = unlinkFirst(right[node]);
+            left[successor] = left[node];
+            node = successor;
+        }
+        return balance(node);
+    }
+
+    private int unlinkFirst(int node) {
+        if (left[node] == NIL) {
+            return right[node];
+        }
+        left[node] = unlinkFirst(left[node]);
+        return balance(node);
+    }
+
+    private int allocate() {
+        if (free != NIL) {
+            int r = free;
+            free = left[r];
+            left[r] = NIL;
+            return r;
+        }
+        if (top == mean.length) {
+            int capacity = 2 * mean.length;
+            mean = Arrays.copyOf(mean, capacity);
+            count = Arrays.copyOf(count, capacity);
+            id = Arrays.copyOf(id, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            depth = Arrays.copyOf(depth, capacity);
+            size = Arrays.copyOf(size, capacity);
+            sum = Arrays.copyOf(sum, capacity);
+            if (data != null) {
+                data = Arrays.copyOf(data, capacity);
+            }
+        }
+        return top++;
+    }
+
+    private void release(int node) {
+        right[node] = NIL;
+        depth[node] = 0;
+        size[node] = 0;
+        sum[node] = 0;
+        if (data != null) {
+            data[node] = null;
+        }
+        left[node] = free;
+        free = node;
+    }
+
+    private int balance(int node) {
+        int l = depth[left[node]];
+        int r = depth[right[node]];
+        if (l > r + 1) {
+            if (depth[left[left[node]]] < depth[right[left[node]]]) {
+                left[node] = rotateLeft(left[node]);
+            }
+            return rotateRight(node);
+        } else if (r > l + 1) {
+            if (depth[right[right[node]]] < depth[left[right[node]]]) {
+                right[node] = rotateRight(right[node]);
+            }
+            return rotateLeft(node);
+        }
+        return fix(node);
+    }
+
+    private int rotateLeft(int node) {
+        int r = right[node];
+        right[node] = left[r];
+        left[r] = fix(node);
+        return fix(r);
+    }
+
+    private int rotateRight(int node) {
+        int l = left[node];
+        left[node] = right[l];
+        right[l] = fix(node);
+        return fix(l);
+    }
+
+    /*
+     * Recomputes the subtree fields of a node after its children changed,
+     * and points the children back at it. Writes to the sentinel's parent
+     * are harmless since it is never read.
+     */
+    private int fix(int node) {
+        int l = left[node];
+        int r = right[node];
+        parent[l] = node;
+        parent[r] = node;
+        depth[node] = (byte) (Math.max(depth[l], depth[r]) + 1);
+        size[node] = size[l] + size[r] + 1;
+        sum[node] = sum[l] + sum[r] + count[node];
+        return node;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.quantile;
+
+import java.util.List;
+
+import com.clearspring.analytics.util.Lists;
+import com.clearspring.analytics.util.Preconditions;
+
+/**
+ * Thread safe {@link TDigest} for recording from many threads at once.
+ * Samples go into one of several stripes, each a TDigest with its own lock,
+ * picked by thread id, so threads only contend when they share a stripe.
+ * <p/>
+ * Queries are answered from a snapshot that is rebuilt with
+ * {@link TDigest#merge(double, Iterable)} only when samples have arrived
+ * since the last one. To rebuild it, the stripes that have data are swapped
+ * for empty digests and merged with the previous snapshot, so a writer is
+ * never held up for longer than the swap. Queries made while nothing is
+ * being added take no lock at all.
+ */
+public class ConcurrentTDigest {
+
+    private static final class Stripe {
+
+        TDigest digest;
+        // set by the first add after the stripe was drained
+        volatile boolean dirty;
+
+        Stripe(double compression) {
+            digest = new TDigest(compression);
+        }
+    }
+
+    private final double compression;
+    private final Stripe[] stripes;
+    private final int mask;
+
+    private volatile TDigest snapshot;
+
+    public ConcurrentTDigest(double compression) {
+        this(compression, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param compression as for {@link TDigest#TDigest(double)}
+     * @param stripes     how many digests to spread the writing threads over, rounded up to a power of 2
+     */
+    public ConcurrentTDigest(double compression, int stripes) {
+        Preconditions.checkArgument(stripes > 0, "Number of stripes must be positive");
+        this.compression = compression;
+        int n = Integer.highestOneBit(stripes);
+        if (n < stripes) {
+            n <<= 1;
+        }
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new Stripe(compression);
+        }
+        mask = n - 1;
+        snapshot = new TDigest(compression);
+    }
+
+    /**
+     * Adds a sample to a histogram.
+     *
+     * @param x The value to add.
+     */
+    public void add(double x) {
+        add(x, 1);
+    }
+
+    /**
+     * Adds a sample to a histogram.
+     *
+     * @param x The value to add.
+     * @param w The weight of this point.
+     */
+    public void add(double x, int w) {
+        Stripe stripe = stripes[(int) Thread.currentThread().getId() & mask];
+        synchronized (stripe) {
+            stripe.digest.add(x, w);
+            if (!stripe.dirty) {
+                stripe.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Returns a digest of everything added so far. The same instance is
+     * returned until more samples are added, and it must not be modified.
+     */
+    public TDigest snapshot() {
+        TDigest current = snapshot;
+        if (!dirty()) {
+            return current;
+        }
+        synchronized (this) {
+            // another query may have taken the new samples in the meantime
+            List<TDigest> drained = Lists.newArrayList();
+            for (Stripe stripe : stripes) {
+                if (stripe.dirty) {
+                    synchronized (stripe) {
+                        drained.add(stripe.digest);
+                        stripe.digest = new TDigest(compression);
+                        stripe.dirty = false;
+                    }
+                }
+            }
+            if (!drained.isEmpty()) {
+                if (snapshot.size() > 0) {
+                    drained.add(0, snapshot);
+                }
+                snapshot = TDigest.merge(compression, drained);
+            }
+            return snapshot;
+        }
+    }
+
+    private boolean dirty() {
+        for (Stripe stripe : stripes) {
+            if (stripe.dirty) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @see TDigest#quantile(double)
+     */
+    public double quantile(double q) {
+        return snapshot().quantile(q);
+    }
+
+    /**
+     * @see TDigest#cdf(double)
+     */
+    public double cdf(double x) {
+        return snapshot().cdf(x);
+    }
+
+    /**
+     * @see TDigest#quantiles(double[])
+     */
+    public double[] quantiles(double[] qs) {
+        return snapshot().quantiles(qs);
+    }
+
+    /**
+     * @see TDigest#cdfs(double[])
+     */
+    public double[] cdfs(double[] xs) {
+        return snapshot().cdfs(xs);
+    }
+
+    /**
+     * Returns the number of samples represented in this histogram.
+     */
+    public int size() {
+        return snapshot().size();
+    }
+
+    public double compression() {
+        return compression;
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.quantile;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+import com.clearspring.analytics.util.Preconditions;
+
+/**
+ * Read-only view of a serialized {@link TDigest} that answers queries by
+ * reading the centroids straight out of the buffer, in any of the TDigest
+ * encodings. Nothing is copied and no tree is built, which makes scanning a
+ * large number of stored digests for a few quantiles cheap. Each query
+ * decodes the centroids again, so a digest that is queried many times is
+ * better read with {@link TDigest#fromBytes(ByteBuffer)}.
+ * <p/>
+ * Answers are the same as those of the digest that was written, apart from
+ * the rounding of the means in the smaller encodings. The buffer must not be
+ * modified while the view is in use.
+ */
+public class EncodedTDigest {
+
+    private final ByteBuffer buf;
+    private final int encoding;
+    private final double compression;
+    private final int centroids;
+    private final int count;
+
+    // where the means and counts start, and the bits per count in COMPACT_ENCODING
+    private final int meansStart;
+    private final int countsStart;
+    private final int countBits;
+
+    /**
+     * Wraps the digest starting at the position of buf. The position of buf
+     * is left unchanged.
+     */
+    public EncodedTDigest(ByteBuffer buf) {
+        this.buf = buf.slice();
+        encoding = this.buf.getInt(0);
+        compression = this.buf.getDouble(4);
+        centroids = this.buf.getInt(12);
+        if (encoding == TDigest.VERBOSE_ENCODING) {
+            meansStart = 16;
+            countsStart = 16 + 8 * centroids;
+            countBits = 0;
+        } else if (encoding == TDigest.SMALL_ENCODING) {
+            meansStart = 16;
+            countsStart = 16 + 4 * centroids;
+            countBits = 0;
+        } else if (encoding == TDigest.COMPACT_ENCODING) {
+            countBits = this.buf.get(16);
+            Preconditions.checkState(countBits >= 0 && countBits < 32);
+            countsStart = 17;
+            meansStart = countsStart + (int) (((long) centroids * countBits + 7) >>> 3);
+        } else {
+            throw new IllegalStateException("Invalid format for serialized histogram");
+        }
+
+        int total = 0;
+        Cursor cursor = new Cursor();
+        for (int i = 0; i < centroids; i++) {
+            total += cursor.nextCount();
+        }
+        count = total;
+    }
+
+    /**
+     * Returns the number of samples represented in this histogram.
+     */
+    public int size() {
+        return count;
+    }
+
+    public int centroidCount() {
+        return centroids;
+    }
+
+    public double compression() {
+        return compression;
+    }
+
+    /**
+     * Returns the number of bytes the encoded digest takes up, which is
+     * where the next one starts when several are stored back to back.
+     */
+    public int byteSize() {
+        Cursor it = new Cursor();
+        for (int i = 0; i < centroids; i++) {
+            it.nextMean();
+            it.nextCount();
+        }
+        return it.end();
+    }
+
+    /**
+     * @see TDigest#cdf(double)
+     */
+    public double cdf(double x) {
+        return ascendingCdfs(new double[]{x})[0];
+    }
+
+    /**
+     * @see TDigest#cdfs(double[])
+     */
+    public double[] cdfs(double[] xs) {
+        double[] sorted = xs.clone();
+        Arrays.sort(sorted);
+        double[] answers = ascendingCdfs(sorted);
+        double[] r = new double[xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            r[i] = answers[Arrays.binarySearch(sorted, xs[i])];
+        }
+        return r;
+    }
+
+    private double[] ascendingCdfs(double[] xs) {
+        double[] result = new double[xs.length];
+        Cursor it = new Cursor();
+        if (centroids == 0) {
+            Arrays.fill(result, Double.NaN);
+            return result;
+        } else if (centroids == 1) {
+            double mean = it.nextMean();
+            for (int i = 0; i < xs.length; i++) {
+                result[i] = xs[i] < mean ? 0 : 1;
+            }
+            return result;
+        }
+
+        double r = 0;
+
+        // a is the centroid being scanned and b the look-ahead to the next one
+        double aMean = it.nextMean();
+        int aCount = it.nextCount();
+        double bMean = it.nextMean();
+        int bCount = it.nextCount();
+
+        double left = (bMean - aMean) / 2;
+        double right = left;
+        boolean last = false;
+
+        next:
+        for (int i = 0; i < xs.length; i++) {
+            double x = xs[i];
+
+            while (it.hasNext()) {
+                if (x < aMean + right) {
+                    result[i] = (r + aCount * interpolate(x, aMean - left, aMean + right)) / count;
+                    continue next;
+                }
+                r += aCount;
+
+                aMean = bMean;
+                aCount = bCount;
+                bMean = it.nextMean();
+                bCount = it.nextCount();
+
+                left = right;
+                right = (bMean - aMean) / 2;
+            }
+
+            // for the last element, assume right width is same as left
+            if (!last) {
+                left = right;
+                aMean = bMean;
+                aCount = bCount;
+                last = true;
+            }
+            if (x < aMean + right) {
+                result[i] = (r + aCount * interpolate(x, aMean - left, aMean + right)) / count;
+            } else {
+                result[i] = 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @see TDigest#quantile(double)
+     */
+    public double quantile(double q) {
+        return ascendingQuantiles(new double[]{q})[0];
+    }
+
+    /**
+     * @see TDigest#quantiles(double[])
+     */
+    public double[] quantiles(double[] qs) {
+        double[] sorted = qs.clone();
+        Arrays.sort(sorted);
+        double[] answers = ascendingQuantiles(sorted);
+        double[] r = new double[qs.length];
+        for (int i = 0; i < qs.length; i++) {
+            r[i] = answers[Arrays.binarySearch(sorted, qs[i])];
+        }
+        return r;
+    }
+
+    private double[] ascendingQuantiles(double[] qs) {
+        Preconditions.checkArgument(centroids > 1);
+        double[] result = new double[qs.length];
+
+        Cursor it = new Cursor();
+        double centerMean = it.nextMean();
+        int centerCount = it.nextCount();
+        double leadingMean = it.nextMean();
+        int leadingCount = it.nextCount();
+        if (!it.hasNext()) {
+            // only two centroids because of size limits
+            double diff = (leadingMean - centerMean) / 2;
+            for (int i = 0; i < qs.length; i++) {
+                if (qs[i] > 0.75) {
+                    result[i] = leadingMean + diff * (4 * qs[i] - 3);
+                } else {
+                    result[i] = centerMean + diff * (4 * qs[i] - 1);
+                }
+            }
+            return result;
+        }
+
+        double right = (leadingMean - centerMean) / 2;
+        double left = right;
+
+        double t = centerCount;
+        boolean last = false;
+
+        next:
+        for (int i = 0; i < qs.length; i++) {
+            double q = qs[i] * count;
+            while (it.hasNext()) {
+                if (t + centerCount / 2 >= q) {
+                    result[i] = centerMean - left * 2 * (q - t) / centerCount;
+                    continue next;
+                } else if (t + leadingCount >= q) {
+                    result[i] = centerMean + right * 2.0 * (centerCount - (q - t)) / centerCount;
+                    continue next;
+                }
+                t += centerCount;
+
+                centerMean = leadingMean;
+                centerCount = leadingCount;
+                leadingMean = it.nextMean();
+                leadingCount = it.nextCount();
+                left = right;
+                right = (leadingMean - centerMean) / 2;
+            }
+            // ran out of data ... assume final width is symmetrical
+            if (!last) {
+                centerMean = leadingMean;
+                centerCount = leadingCount;
+                left = right;
+                last = true;
+            }
+            if (t + centerCount / 2 >= q) {
+                result[i] = centerMean - left * 2 * (q - t) / centerCount;
+            } else if (t + leadingCount >= q) {
+                result[i] = centerMean + right * 2.0 * (centerCount - (q - t)) / centerCount;
+            } else {
+                // shouldn't be possible
+                result[i] = 1;
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Decodes all centroids, in order.
+     */
+    void centroids(double[] means, int[] counts) {
+        Cursor it = new Cursor();
+        for (int i = 0; i < centroids; i++) {
+            means[i] = it.nextMean();
+            counts[i] = it.nextCount();
+        }
+    }
+
+    private double interpolate(double x, double x0, double x1) {
+        return (x - x0) / (x1 - x0);
+    }
+
+    /*
+     * Order preserving map between floats and ints, its own inverse.
+     */
+    static int sortableBits(int bits) {
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    /*
+     * Walks the means and the counts side by side, reading only with absolute
+     * gets so that any number of cursors can share the buffer.
+     */
+    private final class Cursor {
+
+        private int means = 0;
+        private int counts = 0;
+        private int meanPos = meansStart;
+        private int countPos = countsStart;
+
+        private double mean = 0;
+        private int meanBits = 0;
+
+        int end() {
+            if (encoding == TDigest.COMPACT_ENCODING) {
+                return Math.max(meanPos, meansStart);
+            }
+            return Math.max(meanPos, countPos);
+        }
+
+        boolean hasNext() {
+            return means < centroids;
+        }
+
+        double nextMean() {
+            means++;
+            if (encoding == TDigest.VERBOSE_ENCODING) {
+                mean = buf.getDouble(meanPos);
+                meanPos += 8;
+            } else if (encoding == TDigest.SMALL_ENCODING) {
+                mean += buf.getFloat(meanPos);
+                meanPos += 4;
+            } else {
+                int v = 0;
+                int shift = 0;
+                int b;
+                do {
+                    Preconditions.checkState(shift <= 28);
+                    b = buf.get(meanPos++);
+                    v |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                meanBits += (v >>> 1) ^ -(v & 1);
+                mean = Float.intBitsToFloat(sortableBits(meanBits));
+            }
+            return mean;
+        }
+
+        int nextCount() {
+            if (encoding == TDigest.VERBOSE_ENCODING) {
+                int n = buf.getInt(countPos);
+                countPos += 4;
+                counts++;
+                return n;
+            } else if (encoding == TDigest.SMALL_ENCODING) {
+                int v = buf.get(countPos++);
+                int z = 0x7f & v;
+                int shift = 7;
+                while ((v & 0x80) != 0) {
+                    Preconditions.checkState(shift <= 28);
+                    v = buf.get(countPos++);
+                    z += (v & 0x7f) << shift;
+                    shift += 7;
+                }
+                counts++;
+                return z;
+            } else {
+                long bit = (long) counts++ * countBits;
+                int pos = countsStart + (int) (bit >>> 3);
+                int shift = (int) (bit & 7);
+                long v = 0;
+                for (int k = 0; k < (shift + countBits + 7) >>> 3; k++) {
+                    v |= (long) (buf.get(pos + k) & 0xff) << (8 * k);
+                }
+                return (int) ((v >>> shift) & ((1L << countBits) - 1));
+            }
+        }
+    }
+}
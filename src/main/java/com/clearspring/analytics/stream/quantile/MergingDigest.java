@@ -0,0 +1,450 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.quantile;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+import com.clearspring.analytics.util.Preconditions;
+
+/**
+ * Variant of {@link TDigest} that keeps its centroids sorted in parallel
+ * mean and count arrays instead of a {@link GroupTree}. Samples are appended
+ * to a buffer, and when the buffer fills up it is sorted and merged with the
+ * centroids in a single pass, using the same size limit on each centroid as
+ * TDigest. Adding a sample is then an array store most of the time rather
+ * than a handful of tree lookups and a remove and re-add.
+ * <p/>
+ * The encodings are those of TDigest, so either class can read what the
+ * other writes. Unlike TDigest this does not support recording all data.
+ */
+public class MergingDigest {
+
+    private final double compression;
+
+    // sorted centroids
+    private double[] mean;
+    private int[] weight;
+    private int centroids = 0;
+
+    // where the next merge is written, swapped with mean and weight after it
+    private double[] mergeMean;
+    private int[] mergeWeight;
+
+    // samples not yet merged
+    private final double[] buffer;
+    private final int[] bufferWeight;
+    private int buffered = 0;
+    private boolean unitWeights = true;
+
+    // includes the buffered samples
+    private int count = 0;
+
+    /**
+     * @param compression as for {@link TDigest#TDigest(double)}
+     */
+    public MergingDigest(double compression) {
+        this(compression, Math.max(1, (int) (5 * compression)));
+    }
+
+    /**
+     * @param compression as for {@link TDigest#TDigest(double)}
+     * @param bufferSize  how many samples to collect before merging them into the centroids
+     */
+    public MergingDigest(double compression, int bufferSize) {
+        Preconditions.checkArgument(compression > 0, "Compression must be positive");
+        Preconditions.checkArgument(bufferSize > 0, "Buffer size must be positive");
+        this.compression = compression;
+        buffer = new double[bufferSize];
+        bufferWeight = new int[bufferSize];
+        int capacity = (int) (2 * compression) + 10;
+        mean = new double[capacity];
+        weight = new int[capacity];
+        mergeMean = new double[capacity];
+        mergeWeight = new int[capacity];
+    }
+
+    /**
+     * Adds a sample to a histogram.
+     *
+     * @param x The value to add.
+     */
+    public void add(double x) {
+        add(x, 1);
+    }
+
+    /**
+     * Adds a sample to a histogram.
+     *
+     * @param x The value to add.
+     * @param w The weight of this point.
+     */
+    public void add(double x, int w) {
+        if (buffered == buffer.length) {
+            compress();
+        }
+        buffer[buffered] = x;
+        bufferWeight[buffered] = w;
+        buffered++;
+        unitWeights &= w == 1;
+        count += w;
+    }
+
+    /**
+     * Adds all samples of another digest to this one. The other digest has
+     * its buffer merged but is otherwise unchanged. A digest can be added to
+     * itself, which doubles every count.
+     */
+    public void add(MergingDigest other) {
+        other.compress();
+        double[] means = other.mean;
+        int[] weights = other.weight;
+        int n = other.centroids;
+        if (other == this) {
+            // merges while adding would replace the centroids being read
+            means = Arrays.copyOf(means, n);
+            weights = Arrays.copyOf(weights, n);
+        }
+        for (int i = 0; i < n; i++) {
+            add(means[i], weights[i]);
+        }
+    }
+
+    /**
+     * Merges any buffered samples into the centroids.
+     */
+    public void compress() {
+        if (buffered == 0) {
+            return;
+        }
+        if (unitWeights) {
+            Arrays.sort(buffer, 0, buffered);
+        } else {
+            sort(buffer, bufferWeight, 0, buffered - 1);
+        }
+        ensureMergeCapacity(centroids + buffered);
+
+        int merged = 0;
+        int i = 0;
+        int j = 0;
+        double currentMean = 0;
+        int currentWeight = 0;
+        // weight of the centroids before the current one
+        long before = 0;
+        while (i < centroids || j < buffered) {
+            double x;
+            int w;
+            if (j == buffered || (i < centroids && mean[i] <= buffer[j])) {
+                x = mean[i];
+                w = weight[i];
+                i++;
+            } else {
+                x = buffer[j];
+                w = bufferWeight[j];
+                j++;
+            }
+
+            if (currentWeight > 0) {
+                double q = (before + (currentWeight + w) / 2.0) / count;
+                double k = 4 * count * q * (1 - q) / compression;
+                if (currentWeight + w <= k) {
+                    currentWeight += w;
+                    currentMean += w * (x - currentMean) / currentWeight;
+                    continue;
+                }
+                mergeMean[merged] = currentMean;
+                mergeWeight[merged] = currentWeight;
+                merged++;
+                before += currentWeight;
+            }
+            currentMean = x;
+            currentWeight = w;
+        }
+        mergeMean[merged] = currentMean;
+        mergeWeight[merged] = currentWeight;
+        merged++;
+
+        double[] swapMean = mean;
+        mean = mergeMean;
+        mergeMean = swapMean;
+        int[] swapWeight = weight;
+        weight = mergeWeight;
+        mergeWeight = swapWeight;
+        centroids = merged;
+        buffered = 0;
+        unitWeights = true;
+    }
+
+    private void ensureMergeCapacity(int capacity) {
+        if (mergeMean.length < capacity) {
+            int length = Math.max(capacity, 2 * mergeMean.length);
+            mergeMean = new double[length];
+            mergeWeight = new int[length];
+        }
+    }
+
+    /**
+     * Returns the number of samples represented in this histogram.  If you want to know how many
+     * centroids are being used, try centroidCount().
+     *
+     * @return the number of samples that have been added.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param x the value at which the CDF should be evaluated
+     * @return the approximate fraction of all samples that were less than or equal to x.
+     */
+    public double cdf(double x) {
+        compress();
+        if (centroids == 0) {
+            return Double.NaN;
+        } else if (centroids == 1) {
+            return x < mean[0] ? 0 : 1;
+        }
+
+        double r = 0;
+        double right = (mean[1] - mean[0]) / 2;
+        double left = right;
+        for (int i = 0; i < centroids; i++) {
+            if (i > 0) {
+                left = right;
+                right = i + 1 < centroids ? (mean[i + 1] - mean[i]) / 2 : left;
+            }
+            if (x < mean[i] + right) {
+                return (r + weight[i] * interpolate(x, mean[i] - left, mean[i] + right)) / count;
+            }
+            r += weight[i];
+        }
+        return 1;
+    }
+
+    /**
+     * @param q The quantile desired.  Can be in the range [0,1].
+     * @return The minimum value x such that we think that the proportion of samples is <= x is q.
+     */
+    public double quantile(double q) {
+        compress();
+        Preconditions.checkArgument(centroids > 1);
+
+        // the inverse of cdf: each centroid is spread evenly over half the
+        // distance to its neighbors on either side
+        double index = q * count;
+        double t = 0;
+        double right = (mean[1] - mean[0]) / 2;
+        double left = right;
+        for (int i = 0; i < centroids; i++) {
+            if (i > 0) {
+                left = right;
+                right = i + 1 < centroids ? (mean[i + 1] - mean[i]) / 2 : left;
+            }
+            if (t + weight[i] >= index || i == centroids - 1) {
+                return mean[i] - left + (left + right) * (index - t) / weight[i];
+            }
+            t += weight[i];
+        }
+        // not reached, the last centroid always answers
+        return mean[centroids - 1];
+    }
+
+    public int centroidCount() {
+        compress();
+        return centroids;
+    }
+
+    public double compression() {
+        return compression;
+    }
+
+    /*
+     * The i-th centroid, valid after compress().
+     */
+    double mean(int i) {
+        return mean[i];
+    }
+
+    int weight(int i) {
+        return weight[i];
+    }
+
+    /**
+     * Returns an upper bound on the number bytes that will be required to represent this histogram.
+     */
+    public int byteSize() {
+        compress();
+        return 4 + 8 + 4 + centroids * 12;
+    }
+
+    /**
+     * Returns an upper bound on the number of bytes that will be required to represent this histogram in
+     * the tighter representation.
+     */
+    public int smallByteSize() {
+        int bound = byteSize();
+        ByteBuffer buf = ByteBuffer.allocate(bound);
+        asSmallBytes(buf);
+        return buf.position();
+    }
+
+    /**
+     * Outputs a histogram in the {@link TDigest#VERBOSE_ENCODING}.
+     */
+    public void asBytes(ByteBuffer buf) {
+        compress();
+        buf.putInt(TDigest.VERBOSE_ENCODING);
+        buf.putDouble(compression());
+        buf.putInt(centroids);
+        for (int i = 0; i < centroids; i++) {
+            buf.putDouble(mean[i]);
+        }
+
+        for (int i = 0; i < centroids; i++) {
+            buf.putInt(weight[i]);
+        }
+    }
+
+    /**
+     * Outputs a histogram in the {@link TDigest#SMALL_ENCODING}.
+     */
+    public void asSmallBytes(ByteBuffer buf) {
+        compress();
+        buf.putInt(TDigest.SMALL_ENCODING);
+        buf.putDouble(compression());
+        buf.putInt(centroids);
+
+        double x = 0;
+        for (int i = 0; i < centroids; i++) {
+            double delta = mean[i] - x;
+            x = mean[i];
+            buf.putFloat((float) delta);
+        }
+
+        for (int i = 0; i < centroids; i++) {
+            TDigest.encode(buf, weight[i]);
+        }
+    }
+
+    /**
+     * Reads a histogram written by either this class or {@link TDigest}. The
+     * centroids are taken over as they are instead of being added again.
+     *
+     * @return The new histogram structure
+     */
+    public static MergingDigest fromBytes(ByteBuffer buf) {
+        int encoding = buf.getInt();
+        if (encoding == TDigest.COMPACT_ENCODING) {
+            buf.position(buf.position() - 4);
+            EncodedTDigest encoded = new EncodedTDigest(buf);
+            MergingDigest r = new MergingDigest(encoded.compression());
+            int n = encoded.centroidCount();
+            if (r.mean.length < n) {
+                r.mean = new double[n];
+                r.weight = new int[n];
+            }
+            encoded.centroids(r.mean, r.weight);
+            buf.position(buf.position() + encoded.byteSize());
+            r.centroids = n;
+            r.count = encoded.size();
+            return r;
+        } else if (encoding != TDigest.VERBOSE_ENCODING && encoding != TDigest.SMALL_ENCODING) {
+            throw new IllegalStateException("Invalid format for serialized histogram");
+        }
+        double compression = buf.getDouble();
+        MergingDigest r = new MergingDigest(compression);
+        int n = buf.getInt();
+        if (r.mean.length < n) {
+            r.mean = new double[n];
+            r.weight = new int[n];
+        }
+
+        if (encoding == TDigest.VERBOSE_ENCODING) {
+            for (int i = 0; i < n; i++) {
+                r.mean[i] = buf.getDouble();
+            }
+            for (int i = 0; i < n; i++) {
+                r.weight[i] = buf.getInt();
+            }
+        } else {
+            double x = 0;
+            for (int i = 0; i < n; i++) {
+                x += buf.getFloat();
+                r.mean[i] = x;
+            }
+            for (int i = 0; i < n; i++) {
+                r.weight[i] = TDigest.decode(buf);
+            }
+        }
+
+        r.centroids = n;
+        for (int i = 0; i < n; i++) {
+            r.count += r.weight[i];
+        }
+        return r;
+    }
+
+    private double interpolate(double x, double x0, double x1) {
+        return (x - x0) / (x1 - x0);
+    }
+
+    /*
+     * Sorts keys[from..to] and moves values along with them.
+     */
+    private static void sort(double[] keys, int[] values, int from, int to) {
+        while (to - from > 16) {
+            double pivot = keys[(from + to) >>> 1];
+            int i = from;
+            int j = to;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+            // recurse into the smaller side so the stack stays logarithmic
+            if (j - from < to - i) {
+                sort(keys, values, from, j);
+                from = i;
+            } else {
+                sort(keys, values, i, to);
+                to = j;
+            }
+        }
+        for (int i = from + 1; i <= to; i++) {
+            for (int j = i; j > from && keys[j - 1] > keys[j]; j--) {
+                swap(keys, values, j - 1, j);
+            }
+        }
+    }
+
+    private static void swap(double[] keys, int[] values, int i, int j) {
+        double key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        int value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+}
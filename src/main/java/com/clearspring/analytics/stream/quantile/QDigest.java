@@ -8,13 +8,15 @@ import java.io.IOException;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
 import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
 
 /**
  * Q-Digest datastructure.
@@ -50,26 +52,6 @@ import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
  */
 public class QDigest implements IQuantileEstimator {
 
-    private static final Comparator<long[]> RANGES_COMPARATOR = new Comparator<long[]>() {
-        @Override
-        public int compare(long[] ra, long[] rb) {
-            long rightA = ra[1], rightB = rb[1], sizeA = ra[1] - ra[0], sizeB = rb[1] - rb[0];
-            if (rightA < rightB) {
-                return -1;
-            }
-            if (rightA > rightB) {
-                return 1;
-            }
-            if (sizeA < sizeB) {
-                return -1;
-            }
-            if (sizeA > sizeB) {
-                return 1;
-            }
-            return 0;
-        }
-    };
-
     private static final int MAP_INITIAL_SIZE = Hash.DEFAULT_INITIAL_SIZE;
     private static final float MAP_LOAD_FACTOR = Hash.VERY_FAST_LOAD_FACTOR;
 
@@ -78,6 +60,27 @@ public class QDigest implements IQuantileEstimator {
     private double compressionFactor;
     private Long2LongOpenHashMap node2count = new Long2LongOpenHashMap(MAP_INITIAL_SIZE, MAP_LOAD_FACTOR);
 
+    /**
+     * The ranges of all nodes, sorted by right end and then by size, with the
+     * running total of their counts. Built on the first query after the
+     * digest changed and shared by all queries until it changes again.
+     */
+    private static final class Ranges {
+
+        final long[] rights;
+        final long[] sizes;
+        // sums[i] is the total count of ranges 0..i
+        final long[] sums;
+
+        Ranges(long[] rights, long[] sizes, long[] sums) {
+            this.rights = rights;
+            this.sizes = sizes;
+            this.sums = sums;
+        }
+    }
+
+    private Ranges ranges;
+
     public QDigest(double compressionFactor) {
         this.compressionFactor = compressionFactor;
     }
@@ -141,6 +144,7 @@ public class QDigest implements IQuantileEstimator {
         long leaf = value2leaf(value);
         node2count.addTo(leaf, 1);
         size++;
+        ranges = null;
         // Always compress at the inserted node, and recompress fully
         // if the tree becomes too large.
         // This is one sensible strategy which both is fast and keeps
@@ -151,6 +155,58 @@ public class QDigest implements IQuantileEstimator {
         }
     }
 
+    /**
+     * Adds all of the given values. They are sorted and equal values are
+     * counted together, so each distinct value costs a single update of its
+     * leaf. The tree is rebuilt at most once, for the largest value, and is
+     * compressed once after all values are in, instead of after each.
+     *
+     * @param values the values to add, in any order; the array is not modified
+     */
+    public void offer(long[] values) {
+        if (values.length == 0) {
+            return;
+        }
+        long[] sorted = values.clone();
+        LongArrays.radixSort(sorted);
+        long min = sorted[0];
+        long max = sorted[sorted.length - 1];
+        if (min < 0 || max > Long.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("Can only accept values in the range 0.." + Long.MAX_VALUE / 2 +
+                                               ", got " + (min < 0 ? min : max));
+        }
+        if (max >= capacity) {
+            rebuildToCapacity(Long.highestOneBit(max) << 1);
+        }
+
+        for (int i = 0; i < sorted.length; ) {
+            int j = i + 1;
+            while (j < sorted.length && sorted[j] == sorted[i]) {
+                j++;
+            }
+            node2count.addTo(value2leaf(sorted[i]), j - i);
+            i = j;
+        }
+        size += sorted.length;
+        ranges = null;
+
+        // Same strategy as for a single value, but with the counts of the
+        // whole batch in place before any compression
+        for (int i = 0; i < sorted.length; i++) {
+            if (i > 0 && sorted[i] == sorted[i - 1]) {
+                continue;
+            }
+            long leaf = value2leaf(sorted[i]);
+            // the leaf may already have been merged into its parent
+            if (get(leaf) > 0) {
+                compressUpward(leaf);
+            }
+        }
+        if (node2count.size() > 3 * compressionFactor) {
+            compressFully();
+        }
+    }
+
     public static QDigest unionOf(QDigest a, QDigest b) {
         if (a.compressionFactor != b.compressionFactor) {
             throw new IllegalArgumentException(
@@ -165,16 +221,18 @@ public class QDigest implements IQuantileEstimator {
         QDigest res = new QDigest(a.compressionFactor);
         res.capacity = a.capacity;
         res.size = a.size + b.size;
-        for (long k : a.node2count.keySet()) {
-            res.node2count.put(k, a.node2count.get(k));
+        for (ObjectIterator<Long2LongMap.Entry> it = a.node2count.long2LongEntrySet().fastIterator(); it.hasNext(); ) {
+            Long2LongMap.Entry e = it.next();
+            res.node2count.put(e.getLongKey(), e.getLongValue());
         }
 
         if (b.capacity > res.capacity) {
             res.rebuildToCapacity(b.capacity);
         }
 
-        for (long k : b.node2count.keySet()) {
-            res.node2count.put(k, b.get(k) + res.get(k));
+        for (ObjectIterator<Long2LongMap.Entry> it = b.node2count.long2LongEntrySet().fastIterator(); it.hasNext(); ) {
+            Long2LongMap.Entry e = it.next();
+            res.node2count.addTo(e.getLongKey(), e.getLongValue());
         }
 
         res.compressFully();
@@ -195,14 +253,23 @@ public class QDigest implements IQuantileEstimator {
         // This is easy to see if you draw it on paper.
         // Process the keys by "layers" in the original tree.
         long scaleR = newCapacity / capacity - 1;
-        Long[] keys = node2count.keySet().toArray(new Long[node2count.size()]);
-        Arrays.sort(keys);
+        int n = node2count.size();
+        long[] nodes = new long[n];
+        long[] counts = new long[n];
+        int i = 0;
+        for (ObjectIterator<Long2LongMap.Entry> it = node2count.long2LongEntrySet().fastIterator(); it.hasNext(); i++) {
+            Long2LongMap.Entry e = it.next();
+            nodes[i] = e.getLongKey();
+            counts[i] = e.getLongValue();
+        }
+        LongArrays.radixSort(nodes, counts, 0, n);
         long scaleL = 1;
-        for (long k : keys) {
+        for (i = 0; i < n; i++) {
+            long k = nodes[i];
             while (scaleL <= k / 2) {
                 scaleL <<= 1;
             }
-            newNode2count.put(k + scaleL * scaleR, node2count.get(k));
+            newNode2count.put(k + scaleL * scaleR, counts[i]);
         }
         node2count = newNode2count;
         capacity = newCapacity;
@@ -211,11 +278,18 @@ public class QDigest implements IQuantileEstimator {
 
     private void compressFully() {
         // Restore property 2 at each node.
-        Long[] allNodes = node2count.keySet().toArray(new Long[node2count.size()]);
-        for (long node : allNodes) {
+        // Compressing removes nodes, so take a copy of the keys first.
+        int n = node2count.size();
+        long[] nodes = new long[n];
+        LongIterator it = node2count.keySet().iterator();
+        for (int i = 0; i < n; i++) {
+            nodes[i] = it.nextLong();
+        }
+        LongArrayFIFOQueue q = new LongArrayFIFOQueue();
+        for (int i = 0; i < n; i++) {
             // The root node is not compressible: it has no parent and no sibling
-            if (!isRoot(node)) {
-                compressDownward(node);
+            if (!isRoot(nodes[i])) {
+                compressDownward(nodes[i], q);
             }
         }
     }
@@ -253,11 +327,12 @@ public class QDigest implements IQuantileEstimator {
 
     /**
      * Restore P2 at seedNode and guarantee that no new violations of P2 appeared.
+     * q is an empty queue shared by the calls of one full compression, and is
+     * left empty.
      */
-    private void compressDownward(long seedNode) {
+    private void compressDownward(long seedNode, LongArrayFIFOQueue q) {
         double threshold = Math.floor(size / compressionFactor);
         // P2 check same as above but shorter and slower (and invoked rarely)
-        LongArrayFIFOQueue q = new LongArrayFIFOQueue();
         q.enqueue(seedNode);
         while (!q.isEmpty()) {
             long node = q.dequeueLong();
@@ -287,25 +362,116 @@ public class QDigest implements IQuantileEstimator {
 
     @Override
     public long getQuantile(double q) {
-        List<long[]> ranges = toAscRanges();
-        long s = 0;
-        for (long[] r : ranges) {
-            s += r[2];
-            if (s > q * size) {
-                return r[1];
+        return ascendingQuantiles(new double[]{q})[0];
+    }
+
+    /**
+     * Computes several quantiles with a single pass over the ranges.
+     *
+     * @param qs the quantiles desired, in any order
+     * @return the value {@link #getQuantile(double)} would return for each of qs
+     */
+    public long[] quantiles(double[] qs) {
+        double[] sorted = qs.clone();
+        Arrays.sort(sorted);
+        long[] answers = ascendingQuantiles(sorted);
+        long[] r = new long[qs.length];
+        for (int i = 0; i < qs.length; i++) {
+            r[i] = answers[Arrays.binarySearch(sorted, qs[i])];
+        }
+        return r;
+    }
+
+    private long[] ascendingQuantiles(double[] qs) {
+        Ranges ranges = ranges();
+        long[] rights = ranges.rights;
+        long[] sums = ranges.sums;
+        long[] result = new long[qs.length];
+        int from = 0;
+        for (int i = 0; i < qs.length; i++) {
+            // the first range at which the running total exceeds q * size
+            double target = qs[i] * size;
+            int lo = from;
+            int hi = sums.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (sums[mid] > target) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
             }
+            result[i] = rights[Math.min(lo, rights.length - 1)];
+            from = lo;
         }
-        return ranges.get(ranges.size() - 1)[1];
+        return result;
     }
 
-    public List<long[]> toAscRanges() {
-        List<long[]> ranges = new ArrayList<long[]>();
-        for (long key : node2count.keySet()) {
-            ranges.add(new long[]{rangeLeft(key), rangeRight(key), node2count.get(key)});
+    /**
+     * Estimates the fraction of values less than or equal to each of the
+     * given values. A range counts towards a value once the value reaches
+     * the right end of the range, which is the same rule
+     * {@link #getQuantile(double)} follows.
+     *
+     * @param values the values at which to evaluate the CDF, in any order
+     * @return the estimated fraction for each value, or NaN if the digest is empty
+     */
+    public double[] cdfs(long[] values) {
+        Ranges ranges = ranges();
+        long[] rights = ranges.rights;
+        long[] sums = ranges.sums;
+        double[] r = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            // the number of ranges whose right end is at most the value
+            int lo = 0;
+            int hi = rights.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (rights[mid] <= values[i]) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            long s = lo == 0 ? 0 : sums[lo - 1];
+            r[i] = size == 0 ? Double.NaN : (double) s / size;
+        }
+        return r;
+    }
+
+    private Ranges ranges() {
+        Ranges r = ranges;
+        if (r == null) {
+            int n = node2count.size();
+            long[] rights = new long[n];
+            long[] sizes = new long[n];
+            long[] sums = new long[n];
+            int i = 0;
+            for (ObjectIterator<Long2LongMap.Entry> it = node2count.long2LongEntrySet().fastIterator(); it.hasNext(); i++) {
+                Long2LongMap.Entry e = it.next();
+                long key = e.getLongKey();
+                rights[i] = rangeRight(key);
+                sizes[i] = rights[i] - rangeLeft(key);
+                sums[i] = e.getLongValue();
+            }
+            LongArrays.radixSort(new long[][]{rights, sizes, sums});
+            for (i = 1; i < n; i++) {
+                sums[i] += sums[i - 1];
+            }
+            r = new Ranges(rights, sizes, sums);
+            ranges = r;
         }
+        return r;
+    }
 
-        Collections.sort(ranges, RANGES_COMPARATOR);
-        return ranges;
+    public List<long[]> toAscRanges() {
+        Ranges r = ranges();
+        List<long[]> list = new ArrayList<long[]>(r.rights.length);
+        for (int i = 0; i < r.rights.length; i++) {
+            long count = i == 0 ? r.sums[0] : r.sums[i] - r.sums[i - 1];
+            list.add(new long[]{r.rights[i] - r.sizes[i], r.rights[i], count});
+        }
+        return list;
     }
 
     public String toString() {
@@ -328,9 +494,10 @@ public class QDigest implements IQuantileEstimator {
             s.writeDouble(d.compressionFactor);
             s.writeLong(d.capacity);
             s.writeInt(d.node2count.size());
-            for (long k : d.node2count.keySet()) {
-                s.writeLong(k);
-                s.writeLong(d.node2count.get(k));
+            for (ObjectIterator<Long2LongMap.Entry> it = d.node2count.long2LongEntrySet().fastIterator(); it.hasNext(); ) {
+                Long2LongMap.Entry e = it.next();
+                s.writeLong(e.getLongKey());
+                s.writeLong(e.getLongValue());
             }
             s.close();
             return bos.toByteArray();
@@ -365,7 +532,9 @@ public class QDigest implements IQuantileEstimator {
     // For debugging purposes.
     public long computeActualSize() {
         long res = 0;
-        for (long x : node2count.values()) res += x;
+        for (LongIterator it = node2count.values().iterator(); it.hasNext(); ) {
+            res += it.nextLong();
+        }
         return res;
     }
 }
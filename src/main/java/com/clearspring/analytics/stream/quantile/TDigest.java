@@ -17,10 +17,11 @@
 
 package com.clearspring.analytics.stream.quantile;
 
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import java.nio.ByteBuffer;
@@ -52,9 +53,11 @@ public class TDigest {
     private Random gen;
 
     private double compression = 100;
-    private GroupTree summary = new GroupTree();
+    private ArrayGroupTree summary = new ArrayGroupTree();
     private int count = 0;
     private boolean recordAllData = false;
+    // ids of the groups in summary, which only need to be unique within this digest
+    private int nextId = 1;
 
     /**
      * A histogram structure that will record a sketch of a distribution.
@@ -89,27 +92,32 @@ public class TDigest {
      * @param w The weight of this point.
      */
     public void add(double x, int w) {
-        // note that because of a zero id, this will be sorted *before* any existing Group with the same mean
-        Group base = createGroup(x, 0);
+        List<Double> base = null;
+        if (recordAllData) {
+            base = Lists.newArrayList();
+            base.add(x);
+        }
         add(x, w, base);
     }
 
-    private void add(double x, int w, Group base) {
-        Group start = summary.floor(base);
-        if (start == null) {
-            start = summary.ceiling(base);
+    /*
+     * base is the recorded data of the sample, or null if there is none.
+     */
+    private void add(double x, int w, List<Double> base) {
+        int start = summary.floor(x, 0);
+        if (start == ArrayGroupTree.NIL) {
+            start = summary.ceiling(x, 0);
         }
 
-        if (start == null) {
-            summary.add(Group.createWeighted(x, w, base.data()));
+        if (start == ArrayGroupTree.NIL) {
+            summary.add(x, w, nextId++, copyData(base));
             count = w;
         } else {
-            Iterable<Group> neighbors = summary.tailSet(start);
             double minDistance = Double.MAX_VALUE;
             int lastNeighbor = 0;
             int i = summary.headCount(start);
-            for (Group neighbor : neighbors) {
-                double z = Math.abs(neighbor.mean() - x);
+            for (int neighbor = start; neighbor != ArrayGroupTree.NIL; neighbor = summary.next(neighbor)) {
+                double z = Math.abs(summary.mean(neighbor) - x);
                 if (z <= minDistance) {
                     minDistance = z;
                     lastNeighbor = i;
@@ -119,35 +127,46 @@ public class TDigest {
                 i++;
             }
 
-            Group closest = null;
+            int closest = ArrayGroupTree.NIL;
             int sum = summary.headSum(start);
             i = summary.headCount(start);
             double n = 1;
-            for (Group neighbor : neighbors) {
+            for (int neighbor = start; neighbor != ArrayGroupTree.NIL; neighbor = summary.next(neighbor)) {
                 if (i > lastNeighbor) {
                     break;
                 }
-                double z = Math.abs(neighbor.mean() - x);
-                double q = (sum + neighbor.count() / 2.0) / count;
+                double z = Math.abs(summary.mean(neighbor) - x);
+                double q = (sum + summary.count(neighbor) / 2.0) / count;
                 double k = 4 * count * q * (1 - q) / compression;
 
                 // this slightly clever selection method improves accuracy with lots of repeated points
-                if (z == minDistance && neighbor.count() + w <= k) {
+                if (z == minDistance && summary.count(neighbor) + w <= k) {
                     if (gen.nextDouble() < 1 / n) {
                         closest = neighbor;
                     }
                     n++;
                 }
-                sum += neighbor.count();
+                sum += summary.count(neighbor);
                 i++;
             }
 
-            if (closest == null) {
-                summary.add(Group.createWeighted(x, w, base.data()));
+            if (closest == ArrayGroupTree.NIL) {
+                summary.add(x, w, nextId++, copyData(base));
             } else {
-                summary.remove(closest);
-                closest.add(x, w, base.data());
-                summary.add(closest);
+                List<Double> data = summary.data(closest);
+                if (data != null) {
+                    if (base != null) {
+                        for (Double old : base) {
+                            data.add(old);
+                        }
+                    } else {
+                        data.add(x);
+                    }
+                }
+                int newCount = summary.count(closest) + w;
+                double centroid = summary.mean(closest);
+                centroid += w * (x - centroid) / newCount;
+                summary.update(closest, centroid, newCount);
             }
             count += w;
 
@@ -163,12 +182,54 @@ public class TDigest {
         }
     }
 
+    private static List<Double> copyData(List<Double> base) {
+        if (base == null) {
+            return null;
+        }
+        List<Double> r = Lists.newArrayList();
+        for (Double x : base) {
+            r.add(x);
+        }
+        return r;
+    }
+
     public void add(TDigest other) {
-        List<Group> tmp = Lists.newArrayList(other.summary);
+        addShuffled(other.summary);
+    }
+
+    /*
+     * Adds the centroids of a tree in random order. They are copied out
+     * first, so the tree may be this digest's own. The order is the one
+     * Collections.shuffle would give with the same generator.
+     */
+    @SuppressWarnings("unchecked")
+    private void addShuffled(ArrayGroupTree values) {
+        int n = values.size();
+        double[] means = new double[n];
+        int[] counts = new int[n];
+        Object[] data = new Object[n];
+        int i = 0;
+        for (int node = values.firstNode(); node != ArrayGroupTree.NIL; node = values.next(node)) {
+            means[i] = values.mean(node);
+            counts[i] = values.count(node);
+            data[i] = values.data(node);
+            i++;
+        }
 
-        Collections.shuffle(tmp, gen);
-        for (Group group : tmp) {
-            add(group.mean(), group.count(), group);
+        int[] order = new int[n];
+        for (i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        for (i = n; i > 1; i--) {
+            int j = gen.nextInt(i);
+            int swap = order[i - 1];
+            order[i - 1] = order[j];
+            order[j] = swap;
+        }
+
+        for (i = 0; i < n; i++) {
+            int k = order[i];
+            add(means[k], counts[k], (List<Double>) data[k]);
         }
     }
 
@@ -190,22 +251,91 @@ public class TDigest {
         return r;
     }
 
+    /**
+     * Merges digests on the given pool. The inputs are split into runs, one
+     * task per run, and each task concatenates the centroids of its run,
+     * sorts them and compresses them in a single pass. Results of two tasks
+     * are combined the same way. Unlike {@link #merge(double, Iterable)} no
+     * centroid is re-inserted in random order, so the result does not depend
+     * on the random generator. Recorded data is not carried over.
+     *
+     * @param compression as for {@link #TDigest(double)}
+     * @param subData     the digests to merge, which must not be modified during the merge
+     * @param pool        where to run the merge
+     */
+    public static TDigest merge(double compression, Iterable<TDigest> subData, ForkJoinPool pool) {
+        Preconditions.checkArgument(subData.iterator().hasNext(), "Can't merge 0 digests");
+        List<TDigest> elements = Lists.newArrayList(subData);
+        int run = Math.max(1, elements.size() / (4 * pool.getParallelism()));
+        MergingDigest merged = pool.invoke(new MergeTask(compression, elements, run));
+
+        TDigest r = new TDigest(compression, elements.get(0).gen);
+        for (int i = 0; i < merged.centroidCount(); i++) {
+            r.summary.add(merged.mean(i), merged.weight(i), r.nextId++, null);
+        }
+        r.count = merged.size();
+        return r;
+    }
+
+    @SuppressWarnings("serial")
+    private static class MergeTask extends RecursiveTask<MergingDigest> {
+
+        private final double compression;
+        private final List<TDigest> digests;
+        private final int run;
+
+        MergeTask(double compression, List<TDigest> digests, int run) {
+            this.compression = compression;
+            this.digests = digests;
+            this.run = run;
+        }
+
+        @Override
+        protected MergingDigest compute() {
+            if (digests.size() <= run) {
+                int centroids = 0;
+                for (TDigest digest : digests) {
+                    centroids += digest.centroidCount();
+                }
+                // large enough that all centroids are merged in one pass
+                MergingDigest r = new MergingDigest(compression, Math.max(1, centroids));
+                for (TDigest digest : digests) {
+                    ArrayGroupTree summary = digest.summary;
+                    for (int node = summary.firstNode(); node != ArrayGroupTree.NIL; node = summary.next(node)) {
+                        r.add(summary.mean(node), summary.count(node));
+                    }
+                }
+                r.compress();
+                return r;
+            }
+
+            int half = digests.size() / 2;
+            MergeTask left = new MergeTask(compression, digests.subList(0, half), run);
+            MergeTask right = new MergeTask(compression, digests.subList(half, digests.size()), run);
+            left.fork();
+            MergingDigest b = right.compute();
+            MergingDigest a = left.join();
+            MergingDigest r = new MergingDigest(compression, Math.max(1, a.centroidCount() + b.centroidCount()));
+            r.add(a);
+            r.add(b);
+            r.compress();
+            return r;
+        }
+    }
+
     public void compress() {
         compress(summary);
     }
 
-    private void compress(GroupTree other) {
+    private void compress(ArrayGroupTree other) {
         TDigest reduced = new TDigest(compression, gen);
         if (recordAllData) {
             reduced.recordAllData();
         }
-        List<Group> tmp = Lists.newArrayList(other);
-        Collections.shuffle(tmp, gen);
-        for (Group group : tmp) {
-            reduced.add(group.mean(), group.count(), group);
-        }
+        reduced.addShuffled(other);
 
         summary = reduced.summary;
+        nextId = reduced.nextId;
     }
 
     /**
@@ -223,48 +353,88 @@ public class TDigest {
      * @return the approximate fraction of all samples that were less than or equal to x.
      */
     public double cdf(double x) {
-        GroupTree values = summary;
+        return ascendingCdfs(new double[]{x})[0];
+    }
+
+    /**
+     * Evaluates the CDF at several points with a single pass over the centroids.
+     *
+     * @param xs the values at which the CDF should be evaluated, in any order
+     * @return the value {@link #cdf(double)} would return for each of xs
+     */
+    public double[] cdfs(double[] xs) {
+        double[] sorted = xs.clone();
+        Arrays.sort(sorted);
+        double[] answers = ascendingCdfs(sorted);
+        double[] r = new double[xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            r[i] = answers[Arrays.binarySearch(sorted, xs[i])];
+        }
+        return r;
+    }
+
+    private double[] ascendingCdfs(double[] xs) {
+        double[] result = new double[xs.length];
+        ArrayGroupTree values = summary;
         if (values.size() == 0) {
-            return Double.NaN;
+            Arrays.fill(result, Double.NaN);
+            return result;
         } else if (values.size() == 1) {
-            return x < values.first().mean() ? 0 : 1;
-        } else {
-            double r = 0;
+            double mean = values.mean(values.firstNode());
+            for (int i = 0; i < xs.length; i++) {
+                result[i] = xs[i] < mean ? 0 : 1;
+            }
+            return result;
+        }
+
+        double r = 0;
+
+        // we scan a across the centroids
+        int a = values.firstNode();
 
-            // we scan a across the centroids
-            Iterator<Group> it = values.iterator();
-            Group a = it.next();
+        // b is the look-ahead to the next centroid, and after the one beyond it
+        int b = values.next(a);
+        int after = values.next(b);
 
-            // b is the look-ahead to the next centroid
-            Group b = it.next();
+        // initially, we set left width equal to right width
+        double left = (values.mean(b) - values.mean(a)) / 2;
+        double right = left;
+        boolean last = false;
 
-            // initially, we set left width equal to right width
-            double left = (b.mean() - a.mean()) / 2;
-            double right = left;
+        // each x resumes the scan where the one before it stopped
+        next:
+        for (int i = 0; i < xs.length; i++) {
+            double x = xs[i];
 
             // scan to next to last element
-            while (it.hasNext()) {
-                if (x < a.mean() + right) {
-                    return (r + a.count() * interpolate(x, a.mean() - left, a.mean() + right)) / count;
+            while (after != ArrayGroupTree.NIL) {
+                if (x < values.mean(a) + right) {
+                    result[i] = (r + values.count(a) * interpolate(x, values.mean(a) - left, values.mean(a) + right)) / count;
+                    continue next;
                 }
-                r += a.count();
+                r += values.count(a);
 
                 a = b;
-                b = it.next();
+                b = after;
+                after = values.next(after);
 
                 left = right;
-                right = (b.mean() - a.mean()) / 2;
+                right = (values.mean(b) - values.mean(a)) / 2;
             }
 
             // for the last element, assume right width is same as left
-            left = right;
-            a = b;
-            if (x < a.mean() + right) {
-                return (r + a.count() * interpolate(x, a.mean() - left, a.mean() + right)) / count;
+            if (!last) {
+                left = right;
+                a = b;
+                last = true;
+            }
+            if (x < values.mean(a) + right) {
+                result[i] = (r + values.count(a) * interpolate(x, values.mean(a) - left, values.mean(a) + right)) / count;
             } else {
-                return 1;
+                result[i] = 1;
             }
         }
+        return result;
     }
 
     /**
@@ -272,57 +442,95 @@ public class TDigest {
      * @return The minimum value x such that we think that the proportion of samples is <= x is q.
      */
     public double quantile(double q) {
-        GroupTree values = summary;
+        return ascendingQuantiles(new double[]{q})[0];
+    }
+
+    /**
+     * Computes several quantiles with a single pass over the centroids.
+     *
+     * @param qs The quantiles desired, in any order.
+     * @return the value {@link #quantile(double)} would return for each of qs
+     */
+    public double[] quantiles(double[] qs) {
+        double[] sorted = qs.clone();
+        Arrays.sort(sorted);
+        double[] answers = ascendingQuantiles(sorted);
+        double[] r = new double[qs.length];
+        for (int i = 0; i < qs.length; i++) {
+            r[i] = answers[Arrays.binarySearch(sorted, qs[i])];
+        }
+        return r;
+    }
+
+    private double[] ascendingQuantiles(double[] qs) {
+        ArrayGroupTree values = summary;
         Preconditions.checkArgument(values.size() > 1);
+        double[] result = new double[qs.length];
 
-        Iterator<Group> it = values.iterator();
-        Group center = it.next();
-        Group leading = it.next();
-        if (!it.hasNext()) {
+        int center = values.firstNode();
+        int leading = values.next(center);
+        int after = values.next(leading);
+        if (after == ArrayGroupTree.NIL) {
             // only two centroids because of size limits
             // both a and b have to have just a single element
-            double diff = (leading.mean() - center.mean()) / 2;
-            if (q > 0.75) {
-                return leading.mean() + diff * (4 * q - 3);
-            } else {
-                return center.mean() + diff * (4 * q - 1);
+            double diff = (values.mean(leading) - values.mean(center)) / 2;
+            for (int i = 0; i < qs.length; i++) {
+                if (qs[i] > 0.75) {
+                    result[i] = values.mean(leading) + diff * (4 * qs[i] - 3);
+                } else {
+                    result[i] = values.mean(center) + diff * (4 * qs[i] - 1);
+                }
             }
-        } else {
-            q *= count;
-            double right = (leading.mean() - center.mean()) / 2;
-            // we have nothing else to go on so make left hanging width same as right to start
-            double left = right;
-
-            double t = center.count();
-            while (it.hasNext()) {
-                if (t + center.count() / 2 >= q) {
+            return result;
+        }
+
+        double right = (values.mean(leading) - values.mean(center)) / 2;
+        // we have nothing else to go on so make left hanging width same as right to start
+        double left = right;
+
+        double t = values.count(center);
+        boolean last = false;
+
+        // each q resumes the scan where the one before it stopped
+        next:
+        for (int i = 0; i < qs.length; i++) {
+            double q = qs[i] * count;
+            while (after != ArrayGroupTree.NIL) {
+                if (t + values.count(center) / 2 >= q) {
                     // left side of center
-                    return center.mean() - left * 2 * (q - t) / center.count();
-                } else if (t + leading.count() >= q) {
+                    result[i] = values.mean(center) - left * 2 * (q - t) / values.count(center);
+                    continue next;
+                } else if (t + values.count(leading) >= q) {
                     // right of b but left of the left-most thing beyond
-                    return center.mean() + right * 2.0 * (center.count() - (q - t)) / center.count();
+                    result[i] = values.mean(center) + right * 2.0 * (values.count(center) - (q - t)) / values.count(center);
+                    continue next;
                 }
-                t += center.count();
+                t += values.count(center);
 
                 center = leading;
-                leading = it.next();
+                leading = after;
+                after = values.next(after);
                 left = right;
-                right = (leading.mean() - center.mean()) / 2;
+                right = (values.mean(leading) - values.mean(center)) / 2;
             }
             // ran out of data ... assume final width is symmetrical
-            center = leading;
-            left = right;
-            if (t + center.count() / 2 >= q) {
+            if (!last) {
+                center = leading;
+                left = right;
+                last = true;
+            }
+            if (t + values.count(center) / 2 >= q) {
                 // left side of center
-                return center.mean() - left * 2 * (q - t) / center.count();
-            } else if (t + leading.count() >= q) {
+                result[i] = values.mean(center) - left * 2 * (q - t) / values.count(center);
+            } else if (t + values.count(leading) >= q) {
                 // right of center but left of leading
-                return center.mean() + right * 2.0 * (center.count() - (q - t)) / center.count();
+                result[i] = values.mean(center) + right * 2.0 * (values.count(center) - (q - t)) / values.count(center);
             } else {
                 // shouldn't be possible
-                return 1;
+                result[i] = 1;
             }
         }
+        return result;
     }
 
     public int centroidCount() {
@@ -363,8 +571,41 @@ public class TDigest {
         return buf.position();
     }
 
+    /**
+     * Returns the number of bytes that will be required to represent this histogram in
+     * the {@link #COMPACT_ENCODING}.
+     */
+    public int compactByteSize() {
+        int bits = 32 - Integer.numberOfLeadingZeros(maxCount());
+        int size = 4 + 8 + 4 + 1 + (int) (((long) summary.size() * bits + 7) >>> 3);
+
+        int last = 0;
+        for (int node = summary.firstNode(); node != ArrayGroupTree.NIL; node = summary.next(node)) {
+            int sortable = EncodedTDigest.sortableBits(Float.floatToIntBits((float) summary.mean(node)));
+            int delta = sortable - last;
+            last = sortable;
+            int zigzag = (delta << 1) ^ (delta >> 31);
+            size += zigzag == 0 ? 1 : (38 - Integer.numberOfLeadingZeros(zigzag)) / 7;
+        }
+        return size;
+    }
+
+    private int maxCount() {
+        int r = 0;
+        for (int node = summary.firstNode(); node != ArrayGroupTree.NIL; node = summary.next(node)) {
+            r = Math.max(r, summary.count(node));
+        }
+        return r;
+    }
+
     public final static int VERBOSE_ENCODING = 1;
     public final static int SMALL_ENCODING = 2;
+    /**
+     * Counts bit-packed at the width of the largest count, followed by the
+     * means rounded to floats and stored as zigzag varint deltas between
+     * their order preserving bit patterns.
+     */
+    public final static int COMPACT_ENCODING = 3;
 
     /**
      * Outputs a histogram as bytes using a particularly cheesy encoding.
@@ -373,12 +614,12 @@ public class TDigest {
         buf.putInt(VERBOSE_ENCODING);
         buf.putDouble(compression());
         buf.putInt(summary.size());
-        for (Group group : summary) {
-            buf.putDouble(group.mean());
+        for (int node = summary.firstNode(); node != ArrayGroupTree.NIL; node = summary.next(node)) {
+            buf.putDouble(summary.mean(node));
         }
 
-        for (Group group : summary) {
-            buf.putInt(group.count());
+        for (int node = summary.firstNode(); node != ArrayGroupTree.NIL; node = summary.next(node)) {
+            buf.putInt(summary.count(node));
         }
     }
 
@@ -388,18 +629,49 @@ public class TDigest {
         buf.putInt(summary.size());
 
         double x = 0;
-        for (Group group : summary) {
-            double delta = group.mean() - x;
-            x = group.mean();
+        for (int node = summary.firstNode(); node != ArrayGroupTree.NIL; node = summary.next(node)) {
+            double delta = summary.mean(node) - x;
+            x = summary.mean(node);
             buf.putFloat((float) delta);
         }
 
-        for (Group group : summary) {
-            int n = group.count();
+        for (int node = summary.firstNode(); node != ArrayGroupTree.NIL; node = summary.next(node)) {
+            int n = summary.count(node);
             encode(buf, n);
         }
     }
 
+    public void asCompactBytes(ByteBuffer buf) {
+        buf.putInt(COMPACT_ENCODING);
+        buf.putDouble(compression());
+        buf.putInt(summary.size());
+
+        int bits = 32 - Integer.numberOfLeadingZeros(maxCount());
+        buf.put((byte) bits);
+        long pending = 0;
+        int pendingBits = 0;
+        for (int node = summary.firstNode(); node != ArrayGroupTree.NIL; node = summary.next(node)) {
+            pending |= (long) summary.count(node) << pendingBits;
+            pendingBits += bits;
+            while (pendingBits >= 8) {
+                buf.put((byte) pending);
+                pending >>>= 8;
+                pendingBits -= 8;
+            }
+        }
+        if (pendingBits > 0) {
+            buf.put((byte) pending);
+        }
+
+        int last = 0;
+        for (int node = summary.firstNode(); node != ArrayGroupTree.NIL; node = summary.next(node)) {
+            int sortable = EncodedTDigest.sortableBits(Float.floatToIntBits((float) summary.mean(node)));
+            int delta = sortable - last;
+            last = sortable;
+            encode(buf, (delta << 1) ^ (delta >> 31));
+        }
+    }
+
     public static void encode(ByteBuffer buf, int n) {
         int k = 0;
         while (n < 0 || n > 0x7f) {
@@ -461,21 +733,38 @@ public class TDigest {
                 r.add(means[i], z);
             }
             return r;
+        } else if (encoding == COMPACT_ENCODING) {
+            buf.position(buf.position() - 4);
+            EncodedTDigest encoded = new EncodedTDigest(buf);
+            int n = encoded.centroidCount();
+            double[] means = new double[n];
+            int[] counts = new int[n];
+            encoded.centroids(means, counts);
+            buf.position(buf.position() + encoded.byteSize());
+
+            TDigest r = new TDigest(encoded.compression());
+            for (int i = 0; i < n; i++) {
+                r.add(means[i], counts[i]);
+            }
+            return r;
         } else {
             throw new IllegalStateException("Invalid format for serialized histogram");
         }
     }
 
-    private Group createGroup(double mean, int id) {
-        return new Group(mean, id, recordAllData);
-    }
-
     private double interpolate(double x, double x0, double x1) {
         return (x - x0) / (x1 - x0);
     }
 
+    /**
+     * A centroid. Groups with the same mean are ordered by id, and a TDigest
+     * numbers the groups it creates itself, so adding to a digest touches no
+     * state shared with other digests. Id 0 is reserved for search keys,
+     * which sort before any group with the same mean.
+     */
     public static class Group implements Comparable<Group> {
 
+        // only for groups created without an id outside of a digest
         private static final AtomicInteger uniqueCount = new AtomicInteger(1);
 
         private double centroid = 0;
@@ -485,7 +774,6 @@ public class TDigest {
         private List<Double> actualData = null;
 
         private Group(boolean record) {
-            id = uniqueCount.incrementAndGet();
             if (record) {
                 actualData = Lists.newArrayList();
             }
@@ -506,6 +794,16 @@ public class TDigest {
             start(x, id);
         }
 
+        /*
+         * A view of a centroid in an ArrayGroupTree.
+         */
+        Group(double mean, int count, int id, List<Double> data) {
+            this.centroid = mean;
+            this.count = count;
+            this.id = id;
+            this.actualData = data;
+        }
+
         private void start(double x, int id) {
             this.id = id;
             add(x, 1);
@@ -558,7 +856,12 @@ public class TDigest {
         }
 
         public static Group createWeighted(double x, int w, Iterable<? extends Double> data) {
+            return createWeighted(x, w, uniqueCount.getAndIncrement(), data);
+        }
+
+        public static Group createWeighted(double x, int w, int id, Iterable<? extends Double> data) {
             Group r = new Group(data != null);
+            r.id = id;
             r.add(x, w, data);
             return r;
         }
@@ -15,12 +15,15 @@
 package com.clearspring.analytics.stream.frequency;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 
 import com.clearspring.analytics.stream.frequency.CountMinSketch.CMSMergeException;
+import com.clearspring.analytics.stream.membership.Filter;
 import com.clearspring.analytics.TestUtils;
 
 import org.apache.commons.lang3.RandomStringUtils;
@@ -211,6 +214,73 @@ public class CountMinSketchTest {
         }
     }
 
+    @Test
+    public void testMergeInto() throws CMSMergeException {
+        Random r = new Random(7364181);
+        CountMinSketch[] sketchs = new CountMinSketch[3];
+        for (int i = 0; i < sketchs.length; i++) {
+            sketchs[i] = new CountMinSketch(7, 2000, 1);
+            for (int j = 0; j < 10000; j++) {
+                sketchs[i].add(r.nextInt(100000), 1 + r.nextInt(10));
+            }
+        }
+        CountMinSketch expected = CountMinSketch.merge(sketchs);
+
+        CountMinSketch target = new CountMinSketch(7, 2000, 1);
+        for (CountMinSketch sketch : sketchs) {
+            sketch.mergeInto(target);
+        }
+        assertEquals(expected, target);
+    }
+
+    @Test
+    public void testMergeParallel() throws CMSMergeException {
+        Random r = new Random(7364181);
+        CountMinSketch[] sketchs = new CountMinSketch[8];
+        for (int i = 0; i < sketchs.length; i++) {
+            // width not a multiple of the split threshold, so ranges straddle rows
+            sketchs[i] = new CountMinSketch(7, 30011, 1);
+            for (int j = 0; j < 10000; j++) {
+                sketchs[i].add(r.nextInt(100000), 1 + r.nextInt(10));
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CountMinSketch expected = CountMinSketch.merge(sketchs);
+            assertEquals(expected, CountMinSketch.mergeParallel(pool, sketchs));
+            assertNull(CountMinSketch.mergeParallel(pool));
+
+            CountMinSketch target = new CountMinSketch(7, 30011, 1);
+            target.add(42, 5);
+            CountMinSketch.mergeParallelInto(pool, target, sketchs);
+            expected.add(42, 5);
+            assertEquals(expected, target);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testUncompatibleMergeInto() {
+        CountMinSketch target = new CountMinSketch(5, 100, 0);
+        target.add(1, 1);
+        CountMinSketch copy = CountMinSketch.deserialize(CountMinSketch.serialize(target));
+        try {
+            CountMinSketch.mergeParallelInto(ForkJoinPool.commonPool(), target,
+                    new CountMinSketch(5, 100, 0), new CountMinSketch(5, 100, 1));
+            fail("expected CMSMergeException");
+        } catch (CMSMergeException e) {
+            // target must be left untouched
+            assertEquals(copy, target);
+        }
+        try {
+            new CountMinSketch(4, 100, 0).mergeInto(target);
+            fail("expected CMSMergeException");
+        } catch (CMSMergeException e) {
+            assertEquals(copy, target);
+        }
+    }
+
     @Test
     public void testMergeEmpty() throws CMSMergeException {
         assertNull(CountMinSketch.merge());
@@ -240,6 +310,101 @@ public class CountMinSketchTest {
         checkCountMinSketchSerialization(new CountMinSketch(0.0001, 0.99999999999, 1));
     }
 
+    @Test
+    public void testCompactSerialization() {
+        Random r = new Random(7364181);
+        CountMinSketch sketch = new CountMinSketch(7, 20000, 1);
+        assertEquals(sketch, CountMinSketch.deserialize(CountMinSketch.serializeCompact(sketch)));
+        for (int i = 0; i < 10000; i++) {
+            sketch.add(r.nextInt(100000), 1);
+        }
+        sketch.add(5, Long.MAX_VALUE / 2);
+        sketch.add("foo", 1L << 40);
+
+        byte[] compact = CountMinSketch.serializeCompact(sketch);
+        byte[] fixed = CountMinSketch.serialize(sketch);
+        assertTrue(compact.length * 4 < fixed.length);
+        assertEquals(sketch, CountMinSketch.deserialize(compact));
+        assertEquals(sketch, CountMinSketch.deserialize(fixed));
+    }
+
+    @Test
+    public void testReadOnlyView() {
+        Random r = new Random(7364181);
+        CountMinSketch sketch = new CountMinSketch(5, 1000, 1);
+        for (int i = 0; i < 10000; i++) {
+            sketch.add(r.nextInt(5000), 1);
+            sketch.add(Integer.toString(r.nextInt(5000)), 1);
+        }
+        byte[] bytes = CountMinSketch.serialize(sketch);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 3);
+        buffer.put(new byte[3]).put(bytes).flip().position(3);
+
+        ReadOnlyCountMinSketch view = new ReadOnlyCountMinSketch(buffer);
+        assertEquals(sketch.size(), view.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(sketch.estimateCount(i), view.estimateCount(i));
+            assertEquals(sketch.estimateCount(Integer.toString(i)), view.estimateCount(Integer.toString(i)));
+        }
+        assertEquals(sketch, view.toCountMinSketch());
+    }
+
+    @Test
+    public void testStringBuckets() {
+        CountMinSketch sketch = new CountMinSketch(5, 1000, 1);
+        sketch.add("foo", 3);
+        long hash = Filter.hash64("foo");
+        for (int i = 0; i < sketch.depth; i++) {
+            assertEquals(3, sketch.table[i][Filter.bucket(hash, i, sketch.width)]);
+        }
+    }
+
+    @Test
+    public void testLegacyEncodings() {
+        // sketches written before String items were hashed with Filter.bucket
+        CountMinSketch fresh = new CountMinSketch(5, 1000, 1);
+        CountMinSketch legacy = new CountMinSketch(fresh.depth, fresh.width, 0, fresh.hashA, fresh.table, false);
+        legacy.add("foo", 3);
+        long hashes = Filter.legacyHashes("foo");
+        for (int i = 0; i < legacy.depth; i++) {
+            assertEquals(3, legacy.table[i][Filter.legacyBucket(hashes, i, legacy.width)]);
+        }
+
+        byte[] fixed = CountMinSketch.serialize(legacy);
+        assertEquals(legacy.depth, ByteBuffer.wrap(fixed).getInt(8));
+        for (CountMinSketch read : new CountMinSketch[]{CountMinSketch.deserialize(fixed),
+                CountMinSketch.deserialize(CountMinSketch.serializeCompact(legacy)),
+                new ReadOnlyCountMinSketch(ByteBuffer.wrap(fixed)).toCountMinSketch()}) {
+            assertEquals(legacy, read);
+            assertEquals(3, read.estimateCount("foo"));
+            read.add("foo", 1);
+            assertEquals(4, read.estimateCount("foo"));
+        }
+        assertEquals(3, new ReadOnlyCountMinSketch(ByteBuffer.wrap(fixed)).estimateCount("foo"));
+    }
+
+    @Test(expected = CMSMergeException.class)
+    public void testMergeDifferentHashing() throws CMSMergeException {
+        CountMinSketch sketch = new CountMinSketch(5, 1000, 1);
+        CountMinSketch legacy = new CountMinSketch(sketch.depth, sketch.width, 0, sketch.hashA,
+                new long[sketch.depth][sketch.width], false);
+        CountMinSketch.merge(sketch, legacy);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReadOnlyViewOfCorruptWidth() {
+        // 8 + 8 * width wraps around to 8 in an int
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.putLong(0).putInt(1).putInt(1 << 29).rewind();
+        new ReadOnlyCountMinSketch(buffer);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReadOnlyViewOfCompactEncoding() {
+        CountMinSketch sketch = new CountMinSketch(5, 1000, 1);
+        new ReadOnlyCountMinSketch(ByteBuffer.wrap(CountMinSketch.serializeCompact(sketch)));
+    }
+
     @Test
     public void testEquals() {
         double eps1 = 0.0001;
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.frequency;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.clearspring.analytics.stream.frequency.CountMinSketch.CMSMergeException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DyadicCountMinSketchTest {
+
+    @Test
+    public void testExactWhenWide() {
+        // with a width much larger than the key space there are no collisions
+        DyadicCountMinSketch sketch = new DyadicCountMinSketch(8, 4, 4096, 1);
+        long[] actual = new long[256];
+        Random r = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            int x = r.nextInt(256);
+            sketch.add(x, 1);
+            actual[x]++;
+        }
+        for (int lo = 0; lo < 256; lo += 7) {
+            for (int hi = lo; hi < 256; hi += 13) {
+                long expected = 0;
+                for (int x = lo; x <= hi; x++) {
+                    expected += actual[x];
+                }
+                assertEquals("[" + lo + ", " + hi + "]", expected, sketch.rangeCount(lo, hi));
+            }
+        }
+        assertEquals(10000, sketch.rangeCount(0, 255));
+        assertEquals(actual[17], sketch.rangeCount(17, 17));
+    }
+
+    @Test
+    public void testRangeAndQuantileAccuracy() {
+        int bits = 20;
+        double eps = 0.0005;
+        DyadicCountMinSketch sketch = new DyadicCountMinSketch(bits, eps, 0.99, 7364181);
+        Random r = new Random(7364181);
+        int numItems = 100000;
+        long[] values = new long[numItems];
+        for (int i = 0; i < numItems; i++) {
+            values[i] = (long) Math.min((1 << bits) - 1, Math.abs(r.nextGaussian()) * 10000);
+            sketch.add(values[i], 1);
+        }
+        Arrays.sort(values);
+
+        long maxError = (long) (2 * bits * eps * numItems);
+        long[][] ranges = {{100, 250}, {0, 5000}, {5000, 20000}, {12345, 12345}};
+        for (long[] range : ranges) {
+            long expected = 0;
+            for (long v : values) {
+                if (v >= range[0] && v <= range[1]) {
+                    expected++;
+                }
+            }
+            long estimate = sketch.rangeCount(range[0], range[1]);
+            assertTrue(estimate >= expected);
+            assertTrue(estimate - expected <= maxError);
+        }
+
+        for (double q : new double[]{0.1, 0.5, 0.9, 0.99}) {
+            long estimate = sketch.quantile(q);
+            int index = Arrays.binarySearch(values, estimate);
+            index = index < 0 ? -index - 1 : index;
+            // the quantile may only be underestimated, by at most the rank error
+            double actualQ = (double) index / numItems;
+            assertTrue(q + ": " + actualQ, actualQ <= q + 0.0001);
+            assertTrue(q + ": " + actualQ, q - actualQ <= (double) maxError / numItems);
+        }
+    }
+
+    @Test
+    public void testMergeAndSerialize() throws CMSMergeException {
+        Random r = new Random(42);
+        DyadicCountMinSketch a = new DyadicCountMinSketch(16, 5, 500, 3);
+        DyadicCountMinSketch b = new DyadicCountMinSketch(16, 5, 500, 3);
+        DyadicCountMinSketch all = new DyadicCountMinSketch(16, 5, 500, 3);
+        for (int i = 0; i < 5000; i++) {
+            int x = r.nextInt(1 << 16);
+            (i % 2 == 0 ? a : b).add(x, 1);
+            all.add(x, 1);
+        }
+        DyadicCountMinSketch merged = DyadicCountMinSketch.merge(a, b);
+        assertEquals(all, merged);
+        assertEquals(all, DyadicCountMinSketch.deserialize(DyadicCountMinSketch.serialize(merged)));
+        assertEquals(all.rangeCount(1000, 30000), merged.rangeCount(1000, 30000));
+    }
+
+    @Test(expected = CMSMergeException.class)
+    public void testUncompatibleMerge() throws CMSMergeException {
+        DyadicCountMinSketch.merge(new DyadicCountMinSketch(16, 5, 500, 3), new DyadicCountMinSketch(8, 5, 500, 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testItemOutOfRange() {
+        new DyadicCountMinSketch(8, 5, 500, 3).add(256, 1);
+    }
+}
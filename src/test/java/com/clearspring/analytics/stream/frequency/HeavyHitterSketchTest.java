@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.frequency;
+
+import java.util.List;
+import java.util.Random;
+
+import com.clearspring.analytics.util.Pair;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeavyHitterSketchTest {
+
+    @Test
+    public void testTopKLongs() {
+        Random r = new Random(7364181);
+        HeavyHitterSketch hh = new HeavyHitterSketch(0.0001, 0.99, 1, 20);
+        long[] actual = new long[1000];
+        for (int i = 0; i < 200000; i++) {
+            // items 0..9 are heavy, the rest is uniform noise
+            int x = r.nextInt(4) == 0 ? r.nextInt(10) : 10 + r.nextInt(990);
+            hh.add(x, 1);
+            actual[x]++;
+        }
+
+        List<Pair<Object, Long>> top = hh.topK(10);
+        assertEquals(10, top.size());
+        for (int i = 0; i < top.size(); i++) {
+            long item = (Long) top.get(i).left;
+            assertTrue("unexpected heavy hitter " + item, item < 10);
+            assertTrue(top.get(i).right >= actual[(int) item]);
+            if (i > 0) {
+                assertTrue(top.get(i - 1).right >= top.get(i).right);
+            }
+        }
+        assertEquals(200000, hh.size());
+    }
+
+    @Test
+    public void testTopKStrings() {
+        HeavyHitterSketch hh = new HeavyHitterSketch(new CountMinSketch(0.001, 0.99, 1), 3);
+        hh.add("a", 5);
+        hh.add("b", 1);
+        hh.add("c", 3);
+        hh.add("d", 10);
+        hh.add("b", 1);
+        hh.add("e", 2);
+
+        List<Pair<Object, Long>> top = hh.topK(5);
+        assertEquals(3, top.size());
+        assertEquals("d", top.get(0).left);
+        assertEquals(10L, (long) top.get(0).right);
+        assertEquals("a", top.get(1).left);
+        assertEquals("c", top.get(2).left);
+        assertEquals(5, hh.estimateCount("a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonEmptySketch() {
+        CountMinSketch sketch = new CountMinSketch(0.001, 0.99, 1);
+        sketch.add(1, 1);
+        new HeavyHitterSketch(sketch, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeK() {
+        HeavyHitterSketch hh = new HeavyHitterSketch(0.001, 0.99, 1, 10);
+        hh.add("a", 1);
+        hh.topK(-1);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.frequency;
+
+import java.util.Random;
+
+import com.clearspring.analytics.stream.frequency.CountMinSketch.CMSMergeException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SlidingWindowCountMinSketchTest {
+
+    @Test
+    public void testMatchesMergeOfLastIntervals() throws CMSMergeException {
+        int numIntervals = 4;
+        int seed = 7364181;
+        Random r = new Random(seed);
+        SlidingWindowCountMinSketch window = new SlidingWindowCountMinSketch(5, 1000, seed, numIntervals);
+        CountMinSketch[] history = new CountMinSketch[10];
+
+        for (int interval = 0; interval < history.length; interval++) {
+            if (interval > 0) {
+                window.advance();
+            }
+            history[interval] = new CountMinSketch(5, 1000, seed);
+            for (int i = 0; i < 10000; i++) {
+                int x = r.nextInt(5000);
+                window.add(x, 1);
+                window.add("k" + x, 2);
+                history[interval].add(x, 1);
+                history[interval].add("k" + x, 2);
+            }
+
+            int from = Math.max(0, interval - numIntervals + 1);
+            CountMinSketch[] live = new CountMinSketch[interval - from + 1];
+            System.arraycopy(history, from, live, 0, live.length);
+            CountMinSketch expected = CountMinSketch.merge(live);
+
+            assertEquals(expected, window.snapshot());
+            assertEquals(expected.size(), window.size());
+            for (int x = 0; x < 100; x++) {
+                assertEquals(expected.estimateCount(x), window.estimateCount(x));
+                assertEquals(expected.estimateCount("k" + x), window.estimateCount("k" + x));
+            }
+        }
+    }
+
+    @Test
+    public void testExpiry() {
+        SlidingWindowCountMinSketch window = new SlidingWindowCountMinSketch(0.001, 0.99, 1, 2);
+        window.add("a", 10);
+        window.advance();
+        window.add("b", 5);
+        assertEquals(10, window.estimateCount("a"));
+        window.advance();
+        assertEquals(0, window.estimateCount("a"));
+        assertEquals(5, window.estimateCount("b"));
+        window.advance();
+        assertEquals(0, window.estimateCount("b"));
+        assertEquals(0, window.size());
+    }
+}
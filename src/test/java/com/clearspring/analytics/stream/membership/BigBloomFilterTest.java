@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.IOException;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BigBloomFilterTest {
+
+    @Test
+    public void testOne() {
+        BigBloomFilter bf = new BigBloomFilter(FilterTest.ELEMENTS, 0.01);
+        bf.add("a");
+        assertTrue(bf.isPresent("a"));
+        assertFalse(bf.isPresent("b"));
+        bf.clear();
+        assertFalse(bf.isPresent("a"));
+    }
+
+    @Test
+    public void testFalsePositivesRandom() {
+        BigBloomFilter bf = new BigBloomFilter(FilterTest.ELEMENTS, FilterTest.spec.bucketsPerElement);
+        FilterTest.testFalsePositives(bf, FilterTest.randomKeys(), FilterTest.randomKeys2());
+    }
+
+    @Test
+    public void testChunks() {
+        // spans several chunks, the last one partially filled
+        BigBloomFilter bf = new BigBloomFilter(3, (2L << 30) + 100, BigBloomFilter.newChunks((2L << 30) + 100));
+        assertEquals(3, bf.chunks().length);
+        assertEquals(2, bf.chunks()[2].length);
+        assertEquals(Integer.MAX_VALUE, bf.buckets());
+        assertEquals((2L << 30) + 100, bf.bucketCount());
+        for (int i = 0; i < 1000; i++) {
+            bf.add(Integer.toString(i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bf.isPresent(Integer.toString(i)));
+        }
+        assertEquals((2L << 30) + 100 - 3000, bf.emptyBuckets(), 10);
+    }
+
+    @Test
+    public void testMerge() {
+        BigBloomFilter bf = new BigBloomFilter(FilterTest.ELEMENTS, 0.01);
+        BigBloomFilter bf2 = new BigBloomFilter(FilterTest.ELEMENTS, 0.01);
+        bf.add("a");
+        bf2.add("c");
+        BigBloomFilter merged = (BigBloomFilter) bf2.merge(bf);
+        assertTrue(merged.isPresent("a"));
+        assertFalse(merged.isPresent("b"));
+        assertTrue(merged.isPresent("c"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeException() {
+        new BigBloomFilter(FilterTest.ELEMENTS, 0.01).merge(new BigBloomFilter(FilterTest.ELEMENTS * 10, 0.01));
+    }
+
+    @Test
+    public void testSerialize() throws IOException {
+        FilterTest.testSerialize(new BigBloomFilter(FilterTest.ELEMENTS, 0.01));
+    }
+
+    @Ignore
+    @Test
+    // run with -mx2G
+    public void testBeyondIntBuckets() {
+        int size = 500 * 1000 * 1000;
+        BigBloomFilter bf = new BigBloomFilter(size, FilterTest.spec.bucketsPerElement);
+        FilterTest.testFalsePositives(bf,
+                new KeyGenerator.IntGenerator(size),
+                new KeyGenerator.IntGenerator(size, size * 2));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryFuseFilterTest {
+
+    private static long[] randomKeys(int n, long seed) {
+        Random r = new Random(seed);
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = r.nextLong();
+        }
+        return keys;
+    }
+
+    @Test
+    public void testOne() {
+        BinaryFuseFilter filter = BinaryFuseFilter.build(new long[]{BinaryFuseFilter.hash("a")});
+        assertTrue(filter.isPresent("a"));
+        assertFalse(filter.isPresent("b"));
+    }
+
+    @Test
+    public void testSmall() {
+        BinaryFuseFilter empty = BinaryFuseFilter.build(new long[0]);
+        assertFalse(empty.isPresent(42));
+        for (int n = 1; n < 100; n++) {
+            long[] keys = randomKeys(n, n);
+            BinaryFuseFilter filter = BinaryFuseFilter.build(keys);
+            for (long key : keys) {
+                assertTrue(filter.isPresent(key));
+            }
+        }
+    }
+
+    @Test
+    public void testDuplicates() {
+        long[] keys = new long[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i % 100;
+        }
+        BinaryFuseFilter filter = BinaryFuseFilter.build(keys);
+        for (long key : keys) {
+            assertTrue(filter.isPresent(key));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        int n = 1000000;
+        long[] keys = randomKeys(n, 1);
+        BinaryFuseFilter filter = BinaryFuseFilter.build(keys);
+        for (long key : keys) {
+            assertTrue(filter.isPresent(key));
+        }
+        // about 9 bits per key
+        double bitsPerKey = 8.0 * filter.buckets() / n;
+        assertTrue(Double.toString(bitsPerKey), bitsPerKey < 9.1);
+
+        long[] otherKeys = randomKeys(n, 2);
+        int fp = 0;
+        for (long key : otherKeys) {
+            if (filter.isPresent(key)) {
+                fp++;
+            }
+        }
+        assertEquals(1 / 256.0, fp / (double) n, 0.0005);
+    }
+
+    @Test
+    public void testStringKeys() {
+        long[] keys = new long[FilterTest.ELEMENTS];
+        ResetableIterator<String> strings = FilterTest.randomKeys();
+        for (int i = 0; strings.hasNext(); i++) {
+            keys[i] = BinaryFuseFilter.hash(strings.next());
+        }
+        BinaryFuseFilter filter = BinaryFuseFilter.build(keys);
+        strings = FilterTest.randomKeys();
+        while (strings.hasNext()) {
+            assertTrue(filter.isPresent(strings.next()));
+        }
+    }
+
+    @Test
+    public void testWrap() {
+        long[] keys = randomKeys(10000, 3);
+        BinaryFuseFilter filter = BinaryFuseFilter.build(keys);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(7 + filter.serializedSize() + 5);
+        buffer.position(7);
+        filter.writeTo(buffer);
+        assertEquals(5, buffer.remaining());
+
+        buffer.position(7);
+        BinaryFuseFilter wrapped = BinaryFuseFilter.wrap(buffer);
+        assertEquals(5, buffer.remaining());
+        assertEquals(filter.buckets(), wrapped.buckets());
+        for (long key : keys) {
+            assertTrue(wrapped.isPresent(key));
+        }
+        for (long key : randomKeys(10000, 4)) {
+            assertEquals(filter.isPresent(key), wrapped.isPresent(key));
+        }
+
+        BinaryFuseFilter copy = BinaryFuseFilter.deserialize(BinaryFuseFilter.serialize(filter));
+        for (long key : keys) {
+            assertTrue(copy.isPresent(key));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrapInvalid() {
+        BinaryFuseFilter.wrap(ByteBuffer.allocate(64));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testAdd() {
+        BinaryFuseFilter.build(new long[]{1, 2, 3}).add("a");
+    }
+
+    @Test
+    public void testSerialize() throws IOException {
+        // FilterTest.testSerialize adds to the filter, which is not possible here
+        BinaryFuseFilter filter = BinaryFuseFilter.build(new long[]{BinaryFuseFilter.hash("a")});
+        DataOutputBuffer out = new DataOutputBuffer();
+        filter.getSerializer().serialize(filter, out);
+
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        Filter copy = filter.getSerializer().deserialize(in);
+        assertTrue(copy.isPresent("a"));
+        assertFalse(copy.isPresent("b"));
+    }
+}
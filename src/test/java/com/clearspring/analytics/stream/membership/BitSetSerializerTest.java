@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BitSetSerializerTest {
+
+    private static BitSet randomBitSet(int nbits, int setBits) {
+        Random r = new Random(nbits);
+        BitSet bs = new BitSet(nbits);
+        for (int i = 0; i < setBits; i++) {
+            // leave the upper half empty so trailing words are zero
+            bs.set(r.nextInt(nbits / 2));
+        }
+        return bs;
+    }
+
+    private static void assertSameSet(BitSet expected, BitSet actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.size(), actual.size());
+    }
+
+    @Test
+    public void testDataStreams() throws IOException {
+        for (int nbits : new int[]{0, 64, 1000, 100000}) {
+            BitSet bs = randomBitSet(Math.max(nbits, 2), nbits / 10);
+            DataOutputBuffer out = new DataOutputBuffer();
+            BitSetSerializer.serialize(bs, out);
+            assertEquals(BitSetSerializer.serializedSize(bs), out.getLength());
+
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(out.getData(), out.getLength());
+            assertSameSet(bs, BitSetSerializer.deserialize(in));
+        }
+    }
+
+    @Test
+    public void testByteBuffer() throws IOException {
+        BitSet bs = randomBitSet(100000, 5000);
+        ByteBuffer buffer = ByteBuffer.allocate(BitSetSerializer.serializedSize(bs) + 10);
+        buffer.position(5);
+        BitSetSerializer.serialize(bs, buffer);
+        assertEquals(buffer.capacity() - 5, buffer.position());
+        buffer.position(5);
+        assertSameSet(bs, BitSetSerializer.deserialize(buffer));
+        assertEquals(buffer.capacity() - 5, buffer.position());
+    }
+
+    @Test
+    public void testChannel() throws IOException {
+        // larger than a single channel chunk
+        BitSet bs = randomBitSet(10000000, 100000);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BitSetSerializer.serialize(bs, Channels.newChannel(bos));
+        byte[] bytes = bos.toByteArray();
+        assertEquals(BitSetSerializer.serializedSize(bs), bytes.length);
+
+        assertSameSet(bs, BitSetSerializer.deserialize(Channels.newChannel(new ByteArrayInputStream(bytes))));
+        assertSameSet(bs, BitSetSerializer.deserialize(ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    public void testReadsLegacyFormat() throws IOException {
+        BitSet bs = randomBitSet(10000, 1000);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BitSetSerializer.serializeLegacy(bs, new DataOutputStream(bos));
+        byte[] bytes = bos.toByteArray();
+
+        assertSameSet(bs, BitSetSerializer.deserialize(new DataInputStream(new ByteArrayInputStream(bytes))));
+        assertSameSet(bs, BitSetSerializer.deserialize(ByteBuffer.wrap(bytes)));
+    }
+}
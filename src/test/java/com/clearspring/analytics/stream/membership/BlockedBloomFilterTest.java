@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockedBloomFilterTest {
+
+    @Test
+    public void testOne() {
+        BlockedBloomFilter bf = new BlockedBloomFilter(FilterTest.ELEMENTS, 0.01);
+        bf.add("a");
+        assertTrue(bf.isPresent("a"));
+        assertFalse(bf.isPresent("b"));
+        bf.clear();
+        assertFalse(bf.isPresent("a"));
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        for (double maxFalsePosProb : new double[]{0.1, 0.01, 0.001}) {
+            BlockedBloomFilter bf = new BlockedBloomFilter(FilterTest.ELEMENTS * 10, maxFalsePosProb);
+            ResetableIterator<String> keys = new KeyGenerator.RandomStringGenerator(314159, FilterTest.ELEMENTS * 10);
+            ResetableIterator<String> otherKeys = new KeyGenerator.RandomStringGenerator(271828, FilterTest.ELEMENTS * 10);
+            while (keys.hasNext()) {
+                bf.add(keys.next());
+            }
+            keys.reset();
+            while (keys.hasNext()) {
+                assertTrue(bf.isPresent(keys.next()));
+            }
+            int fp = 0;
+            while (otherKeys.hasNext()) {
+                if (bf.isPresent(otherKeys.next())) {
+                    fp++;
+                }
+            }
+            double ratio = fp / (double) otherKeys.size();
+            assertTrue(maxFalsePosProb + ": " + ratio, ratio < maxFalsePosProb * 1.1);
+        }
+    }
+
+    @Test
+    public void testBlockedSizing() {
+        // blocking costs some extra buckets compared to a standard filter
+        for (double maxFalsePosProb : new double[]{0.1, 0.01, 0.001}) {
+            BloomCalculations.BloomSpecification spec = BloomCalculations.computeBucketsAndK(maxFalsePosProb);
+            BloomCalculations.BloomSpecification blocked =
+                    BloomCalculations.computeBlockedBucketsAndK(maxFalsePosProb, BlockedBloomFilter.BITS_PER_BLOCK);
+            assertTrue(blocked.bucketsPerElement >= spec.bucketsPerElement);
+            assertTrue(BloomCalculations.getBlockedFalsePositiveProbability(
+                    BlockedBloomFilter.BITS_PER_BLOCK, blocked.bucketsPerElement, blocked.K) <= maxFalsePosProb);
+        }
+        // with very large blocks the load evens out and blocking makes no difference
+        assertEquals(BloomCalculations.getFalsePositiveProbability(10, 7),
+                BloomCalculations.getBlockedFalsePositiveProbability(1 << 16, 10, 7), 0.0005);
+    }
+
+    @Test
+    public void testMerge() {
+        BlockedBloomFilter bf = new BlockedBloomFilter(FilterTest.ELEMENTS, 0.01);
+        BlockedBloomFilter bf2 = new BlockedBloomFilter(FilterTest.ELEMENTS, 0.01);
+        bf.add("a");
+        bf2.add("c");
+        BlockedBloomFilter merged = (BlockedBloomFilter) bf2.merge(bf);
+        assertTrue(merged.isPresent("a"));
+        assertFalse(merged.isPresent("b"));
+        assertTrue(merged.isPresent("c"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeException() {
+        new BlockedBloomFilter(FilterTest.ELEMENTS, 0.01).merge(new BlockedBloomFilter(FilterTest.ELEMENTS * 10, 0.01));
+    }
+
+    @Test
+    public void testSerialize() throws IOException {
+        FilterTest.testSerialize(new BlockedBloomFilter(FilterTest.ELEMENTS, 0.01));
+    }
+}
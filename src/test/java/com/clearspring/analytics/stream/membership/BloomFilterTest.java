@@ -22,6 +22,7 @@ package com.clearspring.analytics.stream.membership;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
@@ -33,6 +34,7 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -230,7 +232,7 @@ public class BloomFilterTest {
         BloomFilter f = null;
 
         assertEquals(128, (f = new BloomFilter(10, 0.05)).buckets());
-        assertEquals(93, serialize(f).length);
+        assertEquals(28, serialize(f).length);
 
         assertEquals(768, new BloomFilter(100, 0.05).buckets());
         assertEquals(7040, new BloomFilter(1000, 0.05).buckets());
@@ -241,25 +243,72 @@ public class BloomFilterTest {
         assertEquals(128, new BloomFilter(10, 0.01).buckets());
         assertEquals(1024, new BloomFilter(100, 0.01).buckets());
         assertEquals(10048, (f = new BloomFilter(1000, 0.01)).buckets());
-        assertEquals(1333, serialize(f).length);
+        assertEquals(1268, serialize(f).length);
 
         assertEquals(100032, (f = new BloomFilter(10000, 0.01)).buckets());
-        assertEquals(12581, serialize(f).length);
+        assertEquals(12516, serialize(f).length);
 
         assertEquals(1000064, (f = new BloomFilter(100000, 0.01)).buckets());
-        assertEquals(125085, serialize(f).length);
+        assertEquals(125020, serialize(f).length);
 
         assertEquals(10000064, (f = new BloomFilter(1000000, 0.01)).buckets());
-        assertEquals(1250085, serialize(f).length);
+        assertEquals(1250020, serialize(f).length);
 
         for (String s : new RandomStringGenerator(new Random().nextInt(), 1000000)) {
             f.add(s);
         }
         assertEquals(10000064, f.buckets());
-        assertEquals(1250085, serialize(f).length);
+        assertEquals(1250020, serialize(f).length);
 
     }
 
+    @Test
+    public void testBuckets() throws IOException {
+        bf.add("a");
+        long hash = Filter.hash64("a");
+        int[] buckets = bf.getHashBuckets("a");
+        for (int i = 0; i < bf.getHashCount(); i++) {
+            assertEquals(Filter.bucket(hash, i, bf.buckets()), buckets[i]);
+            assertTrue(bf.filter().get(buckets[i]));
+        }
+        BloomFilter read = (BloomFilter) FilterTest.testSerialize(bf);
+        assertArrayEquals(buckets, read.getHashBuckets("a"));
+    }
+
+    @Test
+    public void testLegacyEncoding() throws IOException {
+        // a filter written before keys were hashed with Filter.bucket
+        int hashes = 5;
+        BitSet bits = new BitSet(1024);
+        for (int bucket : Filter.getHashBuckets("a", hashes, bits.size())) {
+            bits.set(bucket);
+        }
+        DataOutputBuffer out = new DataOutputBuffer();
+        out.writeInt(hashes);
+        BitSetSerializer.serializeLegacy(bits, out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        BloomFilter read = BloomFilter.serializer().deserialize(in);
+
+        assertEquals(hashes, read.getHashCount());
+        assertArrayEquals(Filter.getHashBuckets("a", hashes, bits.size()), read.getHashBuckets("a"));
+        assertTrue(read.isPresent("a"));
+        assertFalse(read.isPresent("b"));
+        read.add("b");
+        assertTrue(read.isPresent("b"));
+
+        BloomFilter again = BloomFilter.deserialize(BloomFilter.serialize(read));
+        assertEquals(read.filter(), again.filter());
+        assertTrue(again.isPresent("a"));
+        assertTrue(again.isPresent("b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentHashing() {
+        BloomFilter legacy = new BloomFilter(bf.getHashCount(), new BitSet(bf.buckets()), true);
+        bf.merge(legacy);
+    }
+
     @Ignore
     @Test
     public void timeSerialize() throws IOException {
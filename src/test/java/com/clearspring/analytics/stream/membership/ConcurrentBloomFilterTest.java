@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentBloomFilterTest {
+
+    @Test
+    public void testOne() {
+        ConcurrentBloomFilter bf = new ConcurrentBloomFilter(FilterTest.ELEMENTS, 0.01);
+        assertTrue(bf.addIfNotPresent("a"));
+        assertFalse(bf.addIfNotPresent("a"));
+        assertTrue(bf.isPresent("a"));
+        assertFalse(bf.isPresent("b"));
+        bf.clear();
+        assertFalse(bf.isPresent("a"));
+    }
+
+    @Test
+    public void testFalsePositivesRandom() {
+        ConcurrentBloomFilter bf = new ConcurrentBloomFilter(FilterTest.ELEMENTS, FilterTest.spec.bucketsPerElement);
+        FilterTest.testFalsePositives(bf, FilterTest.randomKeys(), FilterTest.randomKeys2());
+    }
+
+    @Test
+    public void testConcurrentAdds() throws Exception {
+        final int threads = 8;
+        final int keysPerThread = 20000;
+        final ConcurrentBloomFilter bf = new ConcurrentBloomFilter(threads * keysPerThread, 0.01);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int added = 0;
+                        // every key is offered by two threads
+                        for (int i = 0; i < keysPerThread; i++) {
+                            int key = (thread / 2) * keysPerThread + i;
+                            if (bf.addIfNotPresent(Integer.toString(key))) {
+                                added++;
+                            }
+                        }
+                        return added;
+                    }
+                }));
+            }
+            int added = 0;
+            for (Future<Integer> future : futures) {
+                added += future.get();
+            }
+            int distinct = threads / 2 * keysPerThread;
+            for (int key = 0; key < distinct; key++) {
+                assertTrue(bf.isPresent(Integer.toString(key)));
+            }
+            // false positives and racing threads move the count a little either way
+            assertEquals(distinct, added, distinct * 0.02);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        ConcurrentBloomFilter bf = new ConcurrentBloomFilter(FilterTest.ELEMENTS, 0.01);
+        ConcurrentBloomFilter bf2 = new ConcurrentBloomFilter(FilterTest.ELEMENTS, 0.01);
+        bf.add("a");
+        bf2.add("c");
+        ConcurrentBloomFilter merged = (ConcurrentBloomFilter) bf2.merge(bf);
+        assertTrue(merged.isPresent("a"));
+        assertFalse(merged.isPresent("b"));
+        assertTrue(merged.isPresent("c"));
+    }
+
+    @Test
+    public void testSerialize() throws IOException {
+        FilterTest.testSerialize(new ConcurrentBloomFilter(FilterTest.ELEMENTS, 0.01));
+    }
+}
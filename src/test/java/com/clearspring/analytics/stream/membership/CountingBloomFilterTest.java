@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CountingBloomFilterTest {
+
+    @Test
+    public void testOne() {
+        CountingBloomFilter bf = new CountingBloomFilter(FilterTest.ELEMENTS, 0.01);
+        bf.add("a");
+        assertTrue(bf.isPresent("a"));
+        assertFalse(bf.isPresent("b"));
+        bf.clear();
+        assertFalse(bf.isPresent("a"));
+    }
+
+    @Test
+    public void testRemove() {
+        CountingBloomFilter bf = new CountingBloomFilter(FilterTest.ELEMENTS, 0.01);
+        int empty = bf.emptyBuckets();
+        bf.add("a");
+        bf.add("a");
+        bf.add("b");
+        assertTrue(bf.remove("a"));
+        assertTrue(bf.isPresent("a"));
+        assertTrue(bf.remove("a"));
+        assertFalse(bf.isPresent("a"));
+        assertFalse(bf.remove("a"));
+        assertTrue(bf.isPresent("b"));
+        assertTrue(bf.remove("b"));
+        assertEquals(empty, bf.emptyBuckets());
+    }
+
+    @Test
+    public void testRemoveMany() {
+        CountingBloomFilter bf = new CountingBloomFilter(FilterTest.ELEMENTS, FilterTest.spec.bucketsPerElement);
+        ResetableIterator<String> keys = FilterTest.randomKeys();
+        while (keys.hasNext()) {
+            bf.add(keys.next());
+        }
+        ResetableIterator<String> keys2 = FilterTest.randomKeys2();
+        while (keys2.hasNext()) {
+            bf.add(keys2.next());
+        }
+        keys2 = FilterTest.randomKeys2();
+        while (keys2.hasNext()) {
+            assertTrue(bf.remove(keys2.next()));
+        }
+        // the remaining keys are all still present, with the expected false positive rate
+        FilterTest.testFalsePositives(bf, FilterTest.randomKeys(), FilterTest.randomKeys2());
+    }
+
+    @Test
+    public void testSaturation() {
+        CountingBloomFilter bf = new CountingBloomFilter(FilterTest.ELEMENTS, 0.01);
+        for (int i = 0; i < 20; i++) {
+            bf.add("a");
+        }
+        for (int bucket : bf.getHashBuckets("a")) {
+            assertEquals(15, bf.count(bucket));
+        }
+        // a saturated counter is never decremented
+        for (int i = 0; i < 20; i++) {
+            assertTrue(bf.remove("a"));
+        }
+        assertTrue(bf.isPresent("a"));
+    }
+
+    @Test
+    public void testFalsePositivesInt() {
+        CountingBloomFilter bf = new CountingBloomFilter(FilterTest.ELEMENTS, FilterTest.spec.bucketsPerElement);
+        FilterTest.testFalsePositives(bf, FilterTest.intKeys(), FilterTest.randomKeys2());
+    }
+
+    @Test
+    public void testMerge() {
+        CountingBloomFilter bf = new CountingBloomFilter(FilterTest.ELEMENTS, 0.01);
+        CountingBloomFilter bf2 = new CountingBloomFilter(FilterTest.ELEMENTS, 0.01);
+        bf.add("a");
+        bf.add("c");
+        bf2.add("c");
+        CountingBloomFilter merged = (CountingBloomFilter) bf2.merge(bf);
+        assertTrue(merged.isPresent("a"));
+        assertFalse(merged.isPresent("b"));
+        assertTrue(merged.isPresent("c"));
+        // counters are summed, so "c" survives one removal
+        assertTrue(merged.remove("c"));
+        assertTrue(merged.isPresent("c"));
+        assertTrue(merged.remove("c"));
+        assertFalse(merged.isPresent("c"));
+        // the inputs are unchanged
+        assertFalse(bf2.isPresent("a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeException() {
+        new CountingBloomFilter(FilterTest.ELEMENTS, 0.01).merge(new CountingBloomFilter(FilterTest.ELEMENTS * 10, 0.01));
+    }
+
+    @Test
+    public void testSerialize() throws IOException {
+        CountingBloomFilter bf = new CountingBloomFilter(FilterTest.ELEMENTS, 0.01);
+        bf.add("a");
+        CountingBloomFilter bf2 = (CountingBloomFilter) FilterTest.testSerialize(bf);
+        for (int bucket : bf.getHashBuckets("a")) {
+            assertEquals(bf.count(bucket), bf2.count(bucket));
+        }
+    }
+}
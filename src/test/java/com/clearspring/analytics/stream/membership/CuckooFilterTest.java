@@ -0,0 +1,177 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CuckooFilterTest {
+
+    @Test
+    public void testOne() {
+        CuckooFilter cf = new CuckooFilter(FilterTest.ELEMENTS, 0.001);
+        cf.add("a");
+        assertTrue(cf.isPresent("a"));
+        assertFalse(cf.isPresent("b"));
+        assertEquals(1, cf.size());
+        cf.clear();
+        assertFalse(cf.isPresent("a"));
+    }
+
+    @Test
+    public void testSizing() {
+        assertEquals(13, CuckooFilter.computeFingerprintBits(0.001));
+        assertTrue(CuckooFilter.getFalsePositiveProbability(13) <= 0.001);
+        assertTrue(CuckooFilter.getFalsePositiveProbability(12) > 0.001);
+        // smaller than a Bloom filter at 0.1%
+        BloomCalculations.BloomSpecification spec = BloomCalculations.computeBucketsAndK(0.001);
+        assertTrue(CuckooFilter.bitsPerElement(13) < spec.bucketsPerElement);
+        assertEquals(4096, CuckooFilter.computeNumBuckets(15000));
+        assertEquals(8192, CuckooFilter.computeNumBuckets(16000));
+    }
+
+    @Test
+    public void testRemove() {
+        CuckooFilter cf = new CuckooFilter(FilterTest.ELEMENTS, 0.001);
+        cf.add("a");
+        cf.add("a");
+        cf.add("b");
+        assertTrue(cf.remove("a"));
+        assertTrue(cf.isPresent("a"));
+        assertTrue(cf.remove("a"));
+        assertFalse(cf.isPresent("a"));
+        assertFalse(cf.remove("a"));
+        assertTrue(cf.isPresent("b"));
+        assertEquals(1, cf.size());
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        for (int fingerprintBits : new int[]{8, 12, 16}) {
+            CuckooFilter cf = new CuckooFilter(FilterTest.ELEMENTS * 10, fingerprintBits);
+            ResetableIterator<String> keys = new KeyGenerator.RandomStringGenerator(314159, FilterTest.ELEMENTS * 10);
+            while (keys.hasNext()) {
+                cf.add(keys.next());
+            }
+            keys = new KeyGenerator.RandomStringGenerator(314159, FilterTest.ELEMENTS * 10);
+            while (keys.hasNext()) {
+                assertTrue(cf.isPresent(keys.next()));
+            }
+            ResetableIterator<String> otherKeys = new KeyGenerator.RandomStringGenerator(271828, FilterTest.ELEMENTS * 10);
+            int fp = 0;
+            while (otherKeys.hasNext()) {
+                if (cf.isPresent(otherKeys.next())) {
+                    fp++;
+                }
+            }
+            double ratio = fp / (double) otherKeys.size();
+            double expected = CuckooFilter.getFalsePositiveProbability(fingerprintBits);
+            assertTrue(fingerprintBits + ": " + ratio, ratio < expected * 1.1);
+        }
+    }
+
+    @Test
+    public void testFill() {
+        // 1024 buckets of 4 slots
+        CuckooFilter cf = new CuckooFilter(12, 1024, CuckooFilter.newTable(12, 1024));
+        int added = 0;
+        try {
+            while (true) {
+                cf.add(Integer.toString(added++));
+            }
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(Double.toString(cf.getLoad()), cf.getLoad() > CuckooFilter.MAX_LOAD);
+        for (int i = 0; i < added; i++) {
+            assertTrue(cf.isPresent(Integer.toString(i)));
+        }
+        try {
+            cf.add("more");
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // removing makes room again
+        for (int i = 0; i < 100; i++) {
+            assertTrue(cf.remove(Integer.toString(i)));
+        }
+        cf.add("more");
+        for (int i = 100; i < added; i++) {
+            assertTrue(cf.isPresent(Integer.toString(i)));
+        }
+    }
+
+    @Test
+    public void testRemoveMany() {
+        CuckooFilter cf = new CuckooFilter(FilterTest.ELEMENTS * 2, 12);
+        ResetableIterator<String> keys = FilterTest.randomKeys();
+        while (keys.hasNext()) {
+            cf.add(keys.next());
+        }
+        ResetableIterator<String> keys2 = FilterTest.randomKeys2();
+        while (keys2.hasNext()) {
+            cf.add(keys2.next());
+        }
+        keys2 = FilterTest.randomKeys2();
+        while (keys2.hasNext()) {
+            assertTrue(cf.remove(keys2.next()));
+        }
+        assertEquals(FilterTest.ELEMENTS, cf.size());
+        keys = FilterTest.randomKeys();
+        while (keys.hasNext()) {
+            assertTrue(cf.isPresent(keys.next()));
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        CuckooFilter cf = new CuckooFilter(FilterTest.ELEMENTS, 0.001);
+        CuckooFilter cf2 = new CuckooFilter(FilterTest.ELEMENTS, 0.001);
+        cf.add("a");
+        cf2.add("c");
+        CuckooFilter merged = (CuckooFilter) cf2.merge(cf);
+        assertTrue(merged.isPresent("a"));
+        assertFalse(merged.isPresent("b"));
+        assertTrue(merged.isPresent("c"));
+        assertEquals(2, merged.size());
+        assertTrue(merged.remove("a"));
+        assertFalse(merged.isPresent("a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeException() {
+        new CuckooFilter(FilterTest.ELEMENTS, 0.01).merge(new CuckooFilter(FilterTest.ELEMENTS * 10, 0.01));
+    }
+
+    @Test
+    public void testSerialize() throws IOException {
+        CuckooFilter cf = new CuckooFilter(FilterTest.ELEMENTS, 0.001);
+        for (int i = 0; i < 1000; i++) {
+            cf.add(Integer.toString(i));
+        }
+        CuckooFilter cf2 = (CuckooFilter) FilterTest.testSerialize(cf);
+        assertEquals(cf.size(), cf2.size());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(cf2.remove(Integer.toString(i)));
+        }
+    }
+}
@@ -19,13 +19,17 @@
 package com.clearspring.analytics.stream.membership;
 
 import java.io.IOException;
+import java.math.BigInteger;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Random;
 import java.util.Set;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -51,6 +55,89 @@ public class FilterTest {
         testManyHashes(randomKeys());
     }
 
+    @Test
+    public void testReduce() {
+        Random r = new Random(42);
+        BigInteger twoTo64 = BigInteger.ONE.shiftLeft(64);
+        for (int i = 0; i < 10000; i++) {
+            long hash = r.nextLong();
+            long max = (r.nextLong() >>> 1) >>> r.nextInt(63);
+            if (max == 0) {
+                continue;
+            }
+            BigInteger unsignedHash = BigInteger.valueOf(hash);
+            if (hash < 0) {
+                unsignedHash = unsignedHash.add(twoTo64);
+            }
+            long expected = unsignedHash.multiply(BigInteger.valueOf(max)).shiftRight(64).longValue();
+            assertEquals(expected, Filter.reduce(hash, max));
+        }
+        assertEquals(0, Filter.reduce(0, Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE - 1, Filter.reduce(-1L, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testBucket() {
+        Random r = new Random(13);
+        byte[] bytes = new byte[32];
+        for (int i = 0; i < 10000; i++) {
+            r.nextBytes(bytes);
+            long[] hashes = {Filter.hash64(Integer.toString(i)), Filter.hash64(bytes, i % 8, 16), Filter.hash64(r.nextLong())};
+            int max = i == 0 ? 1 : i == 1 ? Integer.MAX_VALUE : 1 + r.nextInt(1 << (i % 31));
+            long bigMax = 1 + (r.nextLong() >>> 1);
+            for (long hash : hashes) {
+                long step = Filter.mix64(hash);
+                for (int k = 0; k < 20; k++) {
+                    int bucket = Filter.bucket(hash, k, max);
+                    assertTrue(bucket >= 0 && bucket < max);
+                    assertEquals(Filter.reduce(hash + k * step, max), bucket);
+                    assertEquals(bucket, Filter.bucket(hash, k, (long) max));
+
+                    long bigBucket = Filter.bucket(hash, k, bigMax);
+                    assertTrue(bigBucket >= 0 && bigBucket < bigMax);
+                    assertEquals(Filter.reduce(hash + k * step, bigMax), bigBucket);
+                }
+            }
+        }
+        assertEquals(0, Filter.bucket(-1L, 0, 1));
+        assertEquals(Integer.MAX_VALUE - 1, Filter.bucket(-1L, 0, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testCharSequenceHashesMatchBytes() {
+        Random r = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = r.nextInt(20);
+            for (int j = 0; j < length; j++) {
+                // include unpaired surrogates, which the encoding replaces
+                sb.append(r.nextInt(4) == 0 ? (char) (0xD800 + r.nextInt(0x800)) : (char) r.nextInt(0x3000));
+            }
+            String key = sb.toString();
+            byte[] bytes = Filter.getBytes(key);
+            assertEquals(Filter.hash64(bytes), Filter.hash64(key));
+            assertEquals(Filter.legacyHashes(bytes), Filter.legacyHashes(key));
+            assertArrayEquals(Filter.getHashBuckets(bytes, 10, 1000 + i), Filter.getHashBuckets(key, 10, 1000 + i));
+
+            int offset = bytes.length == 0 ? 0 : r.nextInt(bytes.length);
+            assertEquals(Filter.hash64(Arrays.copyOfRange(bytes, offset, bytes.length)),
+                         Filter.hash64(bytes, offset, bytes.length - offset));
+        }
+    }
+
+    @Test
+    public void testLongHashMatchesBytes() {
+        Random r = new Random(11);
+        for (int i = 0; i < 10000; i++) {
+            long key = r.nextLong();
+            byte[] bytes = new byte[8];
+            for (int j = 0; j < 8; j++) {
+                bytes[j] = (byte) (key >>> (8 * j));
+            }
+            assertEquals(Filter.hash64(bytes), Filter.hash64(key));
+        }
+    }
+
     // used by filter subclass tests
 
     static final double MAX_FAILURE_RATE = 0.1;
@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.BitSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MappedBloomFilterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testOne() throws IOException {
+        MappedBloomFilter bf = MappedBloomFilter.create(folder.newFile(), FilterTest.ELEMENTS, 0.01);
+        bf.add("a");
+        assertTrue(bf.isPresent("a"));
+        assertFalse(bf.isPresent("b"));
+        bf.close();
+    }
+
+    @Test
+    public void testFalsePositivesInt() throws IOException {
+        MappedBloomFilter bf = MappedBloomFilter.create(folder.newFile(), FilterTest.ELEMENTS, FilterTest.spec.bucketsPerElement);
+        FilterTest.testFalsePositives(bf, FilterTest.intKeys(), FilterTest.randomKeys2());
+    }
+
+    @Test
+    public void testFalsePositivesRandom() throws IOException {
+        MappedBloomFilter bf = MappedBloomFilter.create(folder.newFile(), FilterTest.ELEMENTS, FilterTest.spec.bucketsPerElement);
+        FilterTest.testFalsePositives(bf, FilterTest.randomKeys(), FilterTest.randomKeys2());
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        File file = folder.newFile();
+        MappedBloomFilter bf = MappedBloomFilter.create(file, FilterTest.ELEMENTS, 0.01);
+        for (int i = 0; i < FilterTest.ELEMENTS; i++) {
+            bf.add(Integer.toString(i));
+        }
+        bf.close();
+
+        MappedBloomFilter reopened = MappedBloomFilter.open(file, true);
+        assertEquals(bf.getHashCount(), reopened.getHashCount());
+        assertEquals(bf.bucketCount(), reopened.bucketCount());
+        assertEquals(bf.emptyBuckets(), reopened.emptyBuckets());
+        for (int i = 0; i < FilterTest.ELEMENTS; i++) {
+            assertTrue(reopened.isPresent(Integer.toString(i)));
+        }
+    }
+
+    @Test
+    public void testSharedMapping() throws IOException {
+        File file = folder.newFile();
+        MappedBloomFilter writer = MappedBloomFilter.create(file, FilterTest.ELEMENTS, 0.01);
+        MappedBloomFilter reader = MappedBloomFilter.open(file, true);
+        assertFalse(reader.isPresent("a"));
+        writer.add("a");
+        assertTrue(reader.isPresent("a"));
+    }
+
+    @Test
+    public void testCopyBloomFilter() throws IOException {
+        checkCopy(new BloomFilter(FilterTest.ELEMENTS, 0.01));
+    }
+
+    @Test
+    public void testCopyLegacyBloomFilter() throws IOException {
+        BloomFilter filter = new BloomFilter(FilterTest.ELEMENTS, 0.01);
+        MappedBloomFilter bf = checkCopy(new BloomFilter(filter.getHashCount(), new BitSet(filter.buckets()), true));
+
+        // the hashing survives reopening the file
+        MappedBloomFilter reopened = MappedBloomFilter.open(bf.getFile(), true);
+        ResetableIterator<String> keys = FilterTest.randomKeys();
+        while (keys.hasNext()) {
+            assertTrue(reopened.isPresent(keys.next()));
+        }
+    }
+
+    private MappedBloomFilter checkCopy(BloomFilter source) throws IOException {
+        ResetableIterator<String> keys = FilterTest.randomKeys();
+        while (keys.hasNext()) {
+            source.add(keys.next());
+        }
+
+        MappedBloomFilter bf = MappedBloomFilter.create(folder.newFile(), source);
+        assertEquals(source.getHashCount(), bf.getHashCount());
+        assertEquals(source.buckets(), bf.buckets());
+        assertEquals(source.emptyBuckets(), bf.emptyBuckets());
+        // same hashing and layout, so the answers are identical
+        ResetableIterator<String> otherKeys = FilterTest.randomKeys2();
+        while (otherKeys.hasNext()) {
+            String key = otherKeys.next();
+            assertEquals(source.isPresent(key), bf.isPresent(key));
+        }
+        return bf;
+    }
+
+    @Test
+    public void testChunked() throws IOException {
+        // 2^34 buckets take 2GB, mapped as two chunks; the file is sparse
+        // so only the pages that are touched use disk
+        File file = folder.newFile();
+        MappedBloomFilter bf = MappedBloomFilter.createWithBuckets(file, 7, 1L << 34);
+        for (int i = 0; i < 1000; i++) {
+            bf.add(Integer.toString(i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bf.isPresent(Integer.toString(i)));
+        }
+        int fp = 0;
+        for (int i = 1000; i < 2000; i++) {
+            if (bf.isPresent(Integer.toString(i))) {
+                fp++;
+            }
+        }
+        assertEquals(0, fp);
+        assertEquals(Integer.MAX_VALUE, bf.buckets());
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenInvalid() throws IOException {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[128]);
+        out.close();
+        MappedBloomFilter.open(file, true);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScalableBloomFilterTest {
+
+    @Test
+    public void testOne() {
+        ScalableBloomFilter bf = new ScalableBloomFilter(100, 0.01);
+        bf.add("a");
+        assertTrue(bf.isPresent("a"));
+        assertFalse(bf.isPresent("b"));
+        bf.clear();
+        assertFalse(bf.isPresent("a"));
+    }
+
+    @Test
+    public void testGrowth() {
+        ScalableBloomFilter bf = new ScalableBloomFilter(1000, 0.01);
+        assertEquals(1, bf.stageCount());
+        int buckets = bf.buckets();
+        for (int i = 0; i < 1000; i++) {
+            bf.add(Integer.toString(i));
+        }
+        assertEquals(1, bf.stageCount());
+        // repeated keys use no capacity
+        for (int i = 0; i < 1000; i++) {
+            bf.add(Integer.toString(i));
+        }
+        assertEquals(1, bf.stageCount());
+        assertEquals(buckets, bf.buckets());
+
+        // 1000 + 2000 + 4000 + 8000
+        for (int i = 1000; i < 15000; i++) {
+            bf.add(Integer.toString(i));
+        }
+        assertEquals(4, bf.stageCount());
+        // keys that are false positives are not added, so the next stage
+        // starts a little later
+        int i = 15000;
+        while (bf.stageCount() == 4) {
+            bf.add(Integer.toString(i++));
+        }
+        assertTrue(Integer.toString(i), i < 15000 * 1.01);
+        for (i = 0; i < 15000; i++) {
+            assertTrue(bf.isPresent(Integer.toString(i)));
+        }
+    }
+
+    @Test
+    public void testStageRates() {
+        ScalableBloomFilter bf = new ScalableBloomFilter(1000, 0.01);
+        double sum = 0;
+        for (int i = 0; i < 30; i++) {
+            BloomCalculations.BloomSpecification spec = bf.stageSpec(i);
+            double p = BloomCalculations.getFalsePositiveProbability(spec.bucketsPerElement, spec.K);
+            assertTrue(i + ": " + p, p <= bf.stageFalsePosProbability(i) * 1.01);
+            sum += bf.stageFalsePosProbability(i);
+        }
+        assertTrue(sum < 0.01);
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        // the filter is sized for a tenth of the keys and has to grow
+        for (double maxFalsePosProb : new double[]{0.1, 0.01, 0.001}) {
+            ScalableBloomFilter bf = new ScalableBloomFilter(FilterTest.ELEMENTS / 10, maxFalsePosProb);
+            ResetableIterator<String> keys = FilterTest.randomKeys();
+            while (keys.hasNext()) {
+                bf.add(keys.next());
+            }
+            assertTrue(bf.stageCount() > 1);
+            assertTrue(bf.getFalsePositiveProbability() <= maxFalsePosProb);
+            keys = FilterTest.randomKeys();
+            while (keys.hasNext()) {
+                assertTrue(bf.isPresent(keys.next()));
+            }
+            int fp = 0;
+            ResetableIterator<String> otherKeys = FilterTest.randomKeys2();
+            while (otherKeys.hasNext()) {
+                if (bf.isPresent(otherKeys.next())) {
+                    fp++;
+                }
+            }
+            double ratio = fp / (double) otherKeys.size();
+            assertTrue(maxFalsePosProb + ": " + ratio, ratio < maxFalsePosProb * 1.1);
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        ScalableBloomFilter bf = new ScalableBloomFilter(100, 0.01);
+        ScalableBloomFilter bf2 = new ScalableBloomFilter(100, 0.01);
+        for (int i = 0; i < 500; i++) {
+            bf.add("a" + i);
+        }
+        bf2.add("c");
+        ScalableBloomFilter merged = (ScalableBloomFilter) bf2.merge(bf);
+        assertEquals(bf.stageCount(), merged.stageCount());
+        assertEquals(bf.count(), merged.count());
+        for (int i = 0; i < 500; i++) {
+            assertTrue(merged.isPresent("a" + i));
+        }
+        assertFalse(merged.isPresent("b"));
+        assertTrue(merged.isPresent("c"));
+        assertFalse(bf2.isPresent("a0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeException() {
+        new ScalableBloomFilter(100, 0.01).merge(new ScalableBloomFilter(100, 0.001));
+    }
+
+    @Test
+    public void testSerialize() throws IOException {
+        ScalableBloomFilter bf = new ScalableBloomFilter(100, 0.01);
+        for (int i = 0; i < 500; i++) {
+            bf.add(Integer.toString(i));
+        }
+        ScalableBloomFilter bf2 = (ScalableBloomFilter) FilterTest.testSerialize(bf);
+        assertEquals(bf.stageCount(), bf2.stageCount());
+        assertEquals(bf.count(), bf2.count());
+        assertEquals(bf.buckets(), bf2.buckets());
+        for (int i = 0; i < 500; i++) {
+            assertTrue(bf2.isPresent(Integer.toString(i)));
+        }
+    }
+}
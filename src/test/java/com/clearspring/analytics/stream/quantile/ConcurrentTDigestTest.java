@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.quantile;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentTDigestTest {
+
+    @Test
+    public void testConcurrentAdds() throws InterruptedException {
+        final ConcurrentTDigest digest = new ConcurrentTDigest(100, 4);
+        final int threads = 8;
+        final int perThread = 50000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Random gen = new Random(t);
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        digest.add(gen.nextDouble());
+                        if (i % 10000 == 0) {
+                            // queries in the middle of writing must not lose samples
+                            digest.cdf(0.5);
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(threads * perThread, digest.size());
+        for (double q : new double[]{0.01, 0.1, 0.5, 0.9, 0.99}) {
+            assertEquals(q, digest.quantile(q), 0.01);
+            assertEquals(q, digest.cdf(q), 0.01);
+        }
+    }
+
+    @Test
+    public void testSnapshotIsCached() {
+        ConcurrentTDigest digest = new ConcurrentTDigest(100);
+        assertEquals(0, digest.size());
+        for (int i = 0; i < 1000; i++) {
+            digest.add(i);
+        }
+        TDigest first = digest.snapshot();
+        assertEquals(1000, first.size());
+        assertSame(first, digest.snapshot());
+
+        digest.add(1000);
+        TDigest second = digest.snapshot();
+        assertNotSame(first, second);
+        assertEquals(1001, second.size());
+        assertEquals(1000, first.size());
+        assertTrue(digest.quantile(0.5) > 400 && digest.quantile(0.5) < 600);
+    }
+}
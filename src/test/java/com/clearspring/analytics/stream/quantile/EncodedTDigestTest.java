@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.quantile;
+
+import java.util.Random;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EncodedTDigestTest {
+
+    private static final double[] QUANTILES = {0, 0.001, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1};
+
+    private static TDigest digest(Random gen, int n) {
+        TDigest dist = new TDigest(100, gen);
+        for (int i = 0; i < n; i++) {
+            dist.add(gen.nextGaussian() * 1000);
+        }
+        return dist;
+    }
+
+    @Test
+    public void testVerbose() {
+        TDigest dist = digest(new Random(42), 100000);
+        ByteBuffer buf = ByteBuffer.allocate(dist.byteSize());
+        dist.asBytes(buf);
+        buf.flip();
+
+        EncodedTDigest encoded = new EncodedTDigest(buf);
+        assertEquals(0, buf.position());
+        assertEquals(dist.size(), encoded.size());
+        assertEquals(dist.centroidCount(), encoded.centroidCount());
+        assertEquals(dist.compression(), encoded.compression(), 0);
+        assertEquals(buf.limit(), encoded.byteSize());
+        for (double q : QUANTILES) {
+            assertEquals(dist.quantile(q), encoded.quantile(q), 0);
+            double x = dist.quantile(q);
+            assertEquals(dist.cdf(x), encoded.cdf(x), 0);
+        }
+        assertArrayEquals(dist.quantiles(QUANTILES), encoded.quantiles(QUANTILES), 0);
+        assertArrayEquals(dist.cdfs(QUANTILES), encoded.cdfs(QUANTILES), 0);
+    }
+
+    @Test
+    public void testSmall() {
+        TDigest dist = digest(new Random(42), 100000);
+        ByteBuffer buf = ByteBuffer.allocate(dist.byteSize());
+        dist.asSmallBytes(buf);
+        buf.flip();
+
+        EncodedTDigest encoded = new EncodedTDigest(buf);
+        assertEquals(dist.size(), encoded.size());
+        assertEquals(buf.limit(), encoded.byteSize());
+        for (double q : QUANTILES) {
+            assertEquals(dist.quantile(q), encoded.quantile(q), 1e-2);
+            double x = dist.quantile(q);
+            assertEquals(dist.cdf(x), encoded.cdf(x), 1e-6);
+        }
+    }
+
+    @Test
+    public void testCompact() {
+        TDigest dist = digest(new Random(42), 100000);
+        ByteBuffer buf = ByteBuffer.allocate(dist.byteSize());
+        dist.asCompactBytes(buf);
+        assertEquals(dist.compactByteSize(), buf.position());
+        assertTrue(dist.compactByteSize() < dist.smallByteSize());
+        buf.flip();
+
+        EncodedTDigest encoded = new EncodedTDigest(buf);
+        assertEquals(dist.size(), encoded.size());
+        assertEquals(dist.centroidCount(), encoded.centroidCount());
+        assertEquals(buf.limit(), encoded.byteSize());
+        for (double q : QUANTILES) {
+            // means are rounded to floats
+            assertEquals(dist.quantile(q), encoded.quantile(q), 1e-3);
+            double x = dist.quantile(q);
+            assertEquals(dist.cdf(x), encoded.cdf(x), 1e-6);
+        }
+
+        // both digest classes read the compact encoding too
+        TDigest dist2 = TDigest.fromBytes(buf);
+        assertEquals(buf.limit(), buf.position());
+        assertEquals(dist.size(), dist2.size());
+        assertEquals(dist.quantile(0.5), dist2.quantile(0.5), 10);
+
+        buf.rewind();
+        MergingDigest merging = MergingDigest.fromBytes(buf);
+        assertEquals(buf.limit(), buf.position());
+        assertEquals(dist.size(), merging.size());
+        assertEquals(dist.centroidCount(), merging.centroidCount());
+        assertEquals(dist.quantile(0.5), merging.quantile(0.5), 10);
+    }
+
+    @Test
+    public void testCompactWeights() {
+        // counts that need the full width
+        TDigest dist = new TDigest(100, new Random(42));
+        dist.add(-1e30, Integer.MAX_VALUE / 4);
+        dist.add(0, 1);
+        dist.add(Float.MIN_VALUE, 3);
+        dist.add(1e30, 5);
+        ByteBuffer buf = ByteBuffer.allocate(dist.compactByteSize());
+        dist.asCompactBytes(buf);
+        buf.flip();
+
+        EncodedTDigest encoded = new EncodedTDigest(buf);
+        double[] means = new double[encoded.centroidCount()];
+        int[] counts = new int[encoded.centroidCount()];
+        encoded.centroids(means, counts);
+        int i = 0;
+        for (TDigest.Group group : dist.centroids()) {
+            assertEquals((float) group.mean(), means[i], 0);
+            assertEquals(group.count(), counts[i]);
+            i++;
+        }
+        assertEquals(dist.size(), encoded.size());
+    }
+
+    @Test
+    public void testBackToBack() {
+        Random gen = new Random(42);
+        TDigest[] digests = new TDigest[10];
+        int size = 0;
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = digest(gen, 1000 * (i + 1));
+            size += digests[i].byteSize();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (int i = 0; i < digests.length; i++) {
+            switch (i % 3) {
+                case 0:
+                    digests[i].asBytes(buf);
+                    break;
+                case 1:
+                    digests[i].asSmallBytes(buf);
+                    break;
+                default:
+                    digests[i].asCompactBytes(buf);
+            }
+        }
+        buf.flip();
+
+        for (TDigest dist : digests) {
+            EncodedTDigest encoded = new EncodedTDigest(buf);
+            assertEquals(dist.size(), encoded.size());
+            assertEquals(dist.quantile(0.99), encoded.quantile(0.99), 1e-2);
+            buf.position(buf.position() + encoded.byteSize());
+        }
+        assertEquals(buf.limit(), buf.position());
+    }
+
+    @Test
+    public void testEmptyAndSingle() {
+        TDigest dist = new TDigest(100);
+        ByteBuffer buf = ByteBuffer.allocate(100);
+        dist.asCompactBytes(buf);
+        buf.flip();
+        EncodedTDigest encoded = new EncodedTDigest(buf);
+        assertEquals(0, encoded.size());
+        assertTrue(Double.isNaN(encoded.cdf(0)));
+
+        dist.add(3);
+        buf.clear();
+        dist.asCompactBytes(buf);
+        buf.flip();
+        encoded = new EncodedTDigest(buf);
+        assertEquals(1, encoded.size());
+        assertEquals(0, encoded.cdf(2), 0);
+        assertEquals(1, encoded.cdf(3), 0);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.quantile;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MergingDigestTest {
+
+    private static final double[] QUANTILES = {0.001, 0.01, 0.1, 0.5, 0.9, 0.99, 0.999};
+
+    @Test
+    public void testUniform() {
+        Random gen = new Random(42);
+        double[] data = new double[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = gen.nextDouble();
+        }
+        checkAccuracy(data);
+    }
+
+    @Test
+    public void testSkewed() {
+        // many orders of magnitude between the low and high quantiles
+        Random gen = new Random(42);
+        double[] data = new double[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = Math.pow(gen.nextDouble(), 10);
+        }
+        checkAccuracy(data);
+    }
+
+    @Test
+    public void testSequentialPoints() {
+        double[] data = new double[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = i;
+        }
+        checkAccuracy(data);
+    }
+
+    private void checkAccuracy(double[] data) {
+        MergingDigest dist = new MergingDigest(100);
+        for (double x : data) {
+            dist.add(x);
+        }
+        assertEquals(data.length, dist.size());
+        assertTrue("Centroids: " + dist.centroidCount(), dist.centroidCount() < 10 * 100);
+
+        double[] sorted = data.clone();
+        Arrays.sort(sorted);
+        for (double q : QUANTILES) {
+            double x = sorted[(int) (q * data.length)];
+            assertEquals(q, dist.cdf(x), 0.005);
+
+            int rank = Arrays.binarySearch(sorted, dist.quantile(q));
+            if (rank < 0) {
+                rank = -rank - 1;
+            }
+            assertEquals(q, (double) rank / data.length, 0.005);
+        }
+    }
+
+    @Test
+    public void testWeighted() {
+        Random gen = new Random(42);
+        MergingDigest weighted = new MergingDigest(100);
+        MergingDigest repeated = new MergingDigest(100);
+        for (int i = 0; i < 10000; i++) {
+            double x = gen.nextDouble();
+            int w = 1 + gen.nextInt(5);
+            weighted.add(x, w);
+            for (int j = 0; j < w; j++) {
+                repeated.add(x);
+            }
+        }
+        assertEquals(repeated.size(), weighted.size());
+        for (double q : QUANTILES) {
+            assertEquals(repeated.quantile(q), weighted.quantile(q), 0.01);
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        Random gen = new Random(42);
+        MergingDigest all = new MergingDigest(100);
+        MergingDigest merged = new MergingDigest(100);
+        for (int part = 0; part < 10; part++) {
+            MergingDigest digest = new MergingDigest(100);
+            for (int i = 0; i < 10000; i++) {
+                double x = gen.nextDouble();
+                digest.add(x);
+                all.add(x);
+            }
+            merged.add(digest);
+        }
+        assertEquals(all.size(), merged.size());
+        for (double q : QUANTILES) {
+            assertEquals(q, merged.quantile(q), 0.005);
+            assertEquals(all.quantile(q), merged.quantile(q), 0.005);
+        }
+    }
+
+    @Test
+    public void testMergeSelf() {
+        Random gen = new Random(42);
+        // a small buffer makes the digest merge while reading its own centroids
+        MergingDigest digest = new MergingDigest(100, 10);
+        for (int i = 0; i < 10000; i++) {
+            digest.add(gen.nextDouble());
+        }
+        double[] before = new double[QUANTILES.length];
+        for (int i = 0; i < QUANTILES.length; i++) {
+            before[i] = digest.quantile(QUANTILES[i]);
+        }
+        digest.add(digest);
+        assertEquals(20000, digest.size());
+        for (int i = 0; i < QUANTILES.length; i++) {
+            assertEquals(before[i], digest.quantile(QUANTILES[i]), 0.005);
+        }
+    }
+
+    @Test
+    public void testSmallCompression() {
+        MergingDigest digest = new MergingDigest(0.1);
+        for (int i = 0; i < 10; i++) {
+            digest.add(i);
+        }
+        assertEquals(10, digest.size());
+    }
+
+    @Test
+    public void testSerialization() {
+        Random gen = new Random(42);
+        MergingDigest dist = new MergingDigest(100);
+        for (int i = 0; i < 100000; i++) {
+            dist.add(gen.nextDouble());
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(dist.byteSize());
+        dist.asBytes(buf);
+        buf.flip();
+        MergingDigest dist2 = MergingDigest.fromBytes(buf);
+        assertEquals(dist.centroidCount(), dist2.centroidCount());
+        assertEquals(dist.size(), dist2.size());
+        for (double q = 0; q < 1; q += 0.01) {
+            assertEquals(dist.quantile(q), dist2.quantile(q), 0);
+        }
+
+        buf.clear();
+        dist.asSmallBytes(buf);
+        assertEquals(dist.smallByteSize(), buf.position());
+        buf.flip();
+        dist2 = MergingDigest.fromBytes(buf);
+        assertEquals(dist.centroidCount(), dist2.centroidCount());
+        assertEquals(dist.size(), dist2.size());
+        for (double q = 0; q < 1; q += 0.01) {
+            assertEquals(dist.quantile(q), dist2.quantile(q), 1e-6);
+        }
+    }
+
+    @Test
+    public void testTDigestInterop() {
+        Random gen = new Random(42);
+        MergingDigest merging = new MergingDigest(100);
+        TDigest tree = new TDigest(100, gen);
+        for (int i = 0; i < 10000; i++) {
+            double x = gen.nextDouble();
+            merging.add(x);
+            tree.add(x);
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(merging.byteSize());
+        merging.asBytes(buf);
+        buf.flip();
+        TDigest fromMerging = TDigest.fromBytes(buf);
+        assertEquals(merging.size(), fromMerging.size());
+        assertEquals(0.5, fromMerging.quantile(0.5), 0.02);
+
+        buf = ByteBuffer.allocate(tree.byteSize());
+        tree.asSmallBytes(buf);
+        buf.flip();
+        MergingDigest fromTree = MergingDigest.fromBytes(buf);
+        assertEquals(tree.size(), fromTree.size());
+        assertEquals(tree.centroidCount(), fromTree.centroidCount());
+        assertEquals(0.5, fromTree.quantile(0.5), 0.02);
+    }
+
+    @Test
+    public void testEmpty() {
+        MergingDigest dist = new MergingDigest(100);
+        assertEquals(0, dist.size());
+        assertTrue(Double.isNaN(dist.cdf(0)));
+        dist.add(3);
+        assertEquals(0, dist.cdf(2), 0);
+        assertEquals(1, dist.cdf(3), 0);
+    }
+}
@@ -9,6 +9,7 @@ import cern.jet.random.engine.MersenneTwister64;
 import cern.jet.random.engine.RandomEngine;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class QDigestTest {
 
@@ -163,4 +164,104 @@ public class QDigestTest {
 
 
     }
+
+    @Test
+    public void testBatchQueries() {
+        RandomEngine r = new MersenneTwister64(0);
+        Normal dist = new Normal(1000, 200, r);
+        QDigest digest = new QDigest(100);
+        for (int i = 0; i < 100000; i++) {
+            digest.offer(Math.max(0, (long) dist.nextDouble()));
+        }
+
+        double[] qs = {0.99, 0.5, 0.9, 0.999, 0.95, 0.5, 0, 1};
+        long[] quantiles = digest.quantiles(qs);
+        for (int i = 0; i < qs.length; i++) {
+            assertEquals(digest.getQuantile(qs[i]), quantiles[i]);
+        }
+
+        long[] values = {1200, 0, 1000, 5000, 800, 1000};
+        double[] cdfs = digest.cdfs(values);
+        assertEquals(0.84, cdfs[0], 0.02);
+        assertEquals(0, cdfs[1], 0.01);
+        assertEquals(0.5, cdfs[2], 0.02);
+        assertEquals(1, cdfs[3], 0);
+        assertEquals(0.16, cdfs[4], 0.02);
+        assertEquals(cdfs[2], cdfs[5], 0);
+        for (int i = 0; i < qs.length - 1; i++) {
+            // the quantile is where the estimated cdf first exceeds q
+            assertTrue(digest.cdfs(new long[]{quantiles[i]})[0] > qs[i]);
+        }
+    }
+
+    @Test
+    public void testQueriesSeeUpdates() {
+        QDigest digest = new QDigest(100);
+        for (long x = 0; x < 1000; x++) {
+            digest.offer(x);
+        }
+        long median = digest.getQuantile(0.5);
+        assertEquals(median, digest.getQuantile(0.5));
+        assertEquals(500, median, 20);
+
+        // the cached ranges are rebuilt after the next offer
+        for (int i = 0; i < 2000; i++) {
+            digest.offer(2000);
+        }
+        assertEquals(2000, digest.getQuantile(0.5));
+        assertEquals(1.0 / 3, digest.cdfs(new long[]{1000})[0], 0.02);
+
+        QDigest union = QDigest.unionOf(digest, digest);
+        assertEquals(2000, union.getQuantile(0.5));
+        // within the log(capacity) / compressionFactor error bound
+        assertEquals(1.0 / 3, union.cdfs(new long[]{1000})[0], 0.11);
+    }
+
+    @Test
+    public void testBatchOffer() {
+        RandomEngine r = new MersenneTwister64(0);
+        Normal dist = new Normal(1000, 300, r);
+        double compressionFactor = 100;
+        QDigest batched = new QDigest(compressionFactor);
+        long[] all = new long[100000];
+        for (int batch = 0; batch < 10; batch++) {
+            long[] values = new long[all.length / 10];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Math.max(0, (long) dist.nextDouble());
+            }
+            long[] copy = values.clone();
+            batched.offer(values);
+            assertTrue(Arrays.equals(copy, values));
+            System.arraycopy(values, 0, all, batch * values.length, values.length);
+        }
+        assertEquals(all.length, batched.computeActualSize());
+        assertTrue(batched.toAscRanges().size() <= 3 * compressionFactor);
+
+        long max = 0;
+        for (long x : all) max = Math.max(max, x);
+        double eps = (64 - Long.numberOfLeadingZeros(max)) / compressionFactor;
+        for (double q = 0; q <= 1; q += 0.01) {
+            long res = batched.getQuantile(q);
+            double[] actualRank = actualRankOf(res, all);
+            assertTrue(
+                    actualRank[0] + " .. " + actualRank[1] + " outside error bound for  " + q,
+                    q >= actualRank[0] - eps && q <= actualRank[1] + eps);
+        }
+
+        batched.offer(new long[0]);
+        assertEquals(all.length, batched.computeActualSize());
+    }
+
+    @Test
+    public void testBatchOfferRejectsNegative() {
+        QDigest digest = new QDigest(10);
+        digest.offer(new long[]{1, 2, 3});
+        try {
+            digest.offer(new long[]{4, -1, 5});
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected, and nothing of the batch was added
+        }
+        assertEquals(3, digest.computeActualSize());
+    }
 }
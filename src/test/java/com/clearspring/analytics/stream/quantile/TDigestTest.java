@@ -17,7 +17,6 @@
 
 package com.clearspring.analytics.stream.quantile;
 
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -27,6 +26,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import java.nio.ByteBuffer;
 
@@ -43,7 +43,9 @@ import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.ClassRule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -52,6 +54,10 @@ import static org.junit.Assume.assumeTrue;
 
 public class TDigestTest {
 
+    // the dumps are for plotting by hand, so keep them out of the working directory
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
     private static PrintWriter sizeDump;
     private static PrintWriter errorDump;
     private static PrintWriter deviationDump;
@@ -63,13 +69,13 @@ public class TDigestTest {
 
     @BeforeClass
     public static void setup() throws IOException {
-        sizeDump = new PrintWriter(new FileWriter("sizes.csv"));
+        sizeDump = new PrintWriter(new FileWriter(folder.newFile("sizes.csv")));
         sizeDump.printf("tag\ti\tq\tk\tactual\n");
 
-        errorDump = new PrintWriter((new FileWriter("errors.csv")));
+        errorDump = new PrintWriter((new FileWriter(folder.newFile("errors.csv"))));
         errorDump.printf("dist\ttag\tx\tQ\terror\n");
 
-        deviationDump = new PrintWriter((new FileWriter("deviation.csv")));
+        deviationDump = new PrintWriter((new FileWriter(folder.newFile("deviation.csv"))));
         deviationDump.printf("tag\tQ\tk\tx\tmean\tleft\tright\tdeviation\n");
     }
 
@@ -322,7 +328,7 @@ public class TDigestTest {
         assumeTrue(Boolean.parseBoolean(System.getProperty("runSlowTests")));
 
         Random gen = RandomUtils.getRandom();
-        PrintWriter out = new PrintWriter(new FileOutputStream("scaling.tsv"));
+        PrintWriter out = new PrintWriter(new FileOutputStream(folder.newFile("scaling.tsv")));
         out.printf("k\tsamples\tcompression\tsize1\tsize2\n");
         for (int k = 0; k < 20; k++) {
             for (int size : new int[]{10, 100, 1000, 10000}) {
@@ -341,9 +347,9 @@ public class TDigestTest {
     }
 
     @Test
-    public void testScaling() throws FileNotFoundException {
+    public void testScaling() throws IOException {
         Random gen = RandomUtils.getRandom();
-        PrintWriter out = new PrintWriter(new FileOutputStream("error-scaling.tsv"));
+        PrintWriter out = new PrintWriter(new FileOutputStream(folder.newFile("error-scaling.tsv")));
         try {
             out.printf("pass\tcompression\tq\terror\tsize\n");
             // change to 50 passes for better graphs
@@ -462,6 +468,51 @@ public class TDigestTest {
         }
     }
 
+    @Test
+    public void testBatchQueries() {
+        Random gen = RandomUtils.getRandom();
+        for (int n : new int[]{1, 2, 3, 100000}) {
+            TDigest dist = new TDigest(100, gen);
+            for (int i = 0; i < n; i++) {
+                dist.add(gen.nextGaussian());
+            }
+
+            double[] xs = {1, -3, 0, 0.5, 3, Double.NaN, -1, 0};
+            double[] cdfs = dist.cdfs(xs);
+            for (int i = 0; i < xs.length; i++) {
+                assertEquals(dist.cdf(xs[i]), cdfs[i], 0);
+            }
+
+            if (n > 1) {
+                double[] qs = {0.99, 0.5, 0.9, 0.999, 0.95, 0.5, 0, 1, 0.001};
+                double[] quantiles = dist.quantiles(qs);
+                for (int i = 0; i < qs.length; i++) {
+                    assertEquals(dist.quantile(qs[i]), quantiles[i], 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGroupIdsWithinDigest() {
+        // ids come from each digest, so groups with equal means must still be kept apart
+        // after compress() has rebuilt the summary and more points have been added
+        Random gen = RandomUtils.getRandom();
+        TDigest dist = new TDigest(100, gen);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 10000; i++) {
+                dist.add(gen.nextInt(20));
+            }
+            dist.compress();
+        }
+        int total = 0;
+        for (TDigest.Group group : dist.centroids()) {
+            total += group.count();
+        }
+        assertEquals(dist.size(), total);
+        assertEquals(dist.centroidCount(), Iterables.size(dist.centroids()));
+    }
+
     @Test
     public void testMerge() {
         Random gen = RandomUtils.getRandom();
@@ -532,6 +583,47 @@ public class TDigestTest {
         }
     }
 
+    @Test
+    public void testParallelMerge() {
+        Random gen = RandomUtils.getRandom();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int parts : new int[]{1, 2, 5, 20, 100}) {
+                List<Double> data = Lists.newArrayList();
+                List<TDigest> subs = Lists.newArrayList();
+                for (int i = 0; i < parts; i++) {
+                    subs.add(new TDigest(50, gen));
+                }
+                for (int i = 0; i < 100000; i++) {
+                    double x = gen.nextDouble();
+                    data.add(x);
+                    subs.get(i % parts).add(x);
+                }
+                Collections.sort(data);
+
+                TDigest dist = TDigest.merge(50, subs, pool);
+                assertEquals(data.size(), dist.size());
+                assertTrue("Centroids: " + dist.centroidCount(), dist.centroidCount() < 10 * 50);
+
+                for (double q : new double[]{0.001, 0.01, 0.1, 0.2, 0.3, 0.5, 0.9, 0.99}) {
+                    double e = dist.quantile(q) - quantile(q, data);
+                    assertTrue(String.format("parts=%d, q=%.4f, e=%.5f", parts, q, e), Math.abs(e) < 0.015);
+                    assertTrue(String.format("parts=%d, q=%.4f, e=%.5f", parts, q, e), Math.abs(e) / q < 0.1);
+                }
+                for (double x : new double[]{0.001, 0.01, 0.1, 0.2, 0.3, 0.5, 0.9, 0.99}) {
+                    double e = dist.cdf(x) - cdf(x, data);
+                    assertTrue(String.format("parts=%d, x=%.4f, e=%.5f", parts, x, e), Math.abs(e) < 0.015);
+                }
+
+                // the result is an ordinary digest that can keep growing
+                dist.add(0.5);
+                assertEquals(data.size() + 1, dist.size());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     private double cdf(final double x, List<Double> data) {
         int n1 = 0;
         int n2 = 0;